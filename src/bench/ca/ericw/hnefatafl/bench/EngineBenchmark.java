@@ -0,0 +1,184 @@
+package ca.ericw.hnefatafl.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HeadlessHnefataflState;
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+import ca.ericw.hnefatafl.data.HnefataflMechanics;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+import ca.ericw.hnefatafl.data.HnefataflVariant;
+
+/**
+ * Measures the number of rules engine operations per second on a set of
+ * midgame positions from each board configuration. Run with <code>ant
+ * bench</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    /** Board configuration to measure. */
+    @Param({"ardri", "tablut", "errk"})
+    public String setup;
+
+    @Setup
+    public void createPositions() {
+        Random rand = new Random(SEED);
+        HnefataflVariant variant = HnefataflConfigurations.getVariant(setup);
+        _positions = new HnefataflBoard[POSITIONS];
+        _colours = new int[POSITIONS];
+        _moves = new int[POSITIONS][];
+        _moveCounts = new int[POSITIONS];
+
+        for (int i = 0; i < POSITIONS; i++) {
+            // play a few random moves into the game to reach a typical position
+            HnefataflBoard board = variant.createBoard();
+            int[] moves = new int[board.getMaxMoves()];
+            int colour = HnefataflObject.BLACK;
+            for (int ply = 0; ply < OPENING_PLIES && board.getWinner() == -1; ply++) {
+                int count = board.generateMoves(colour, moves);
+                if (count == 0) {
+                    break;
+                }
+                board.makeMove(moves[rand.nextInt(count)]);
+                colour = 1 - colour;
+            }
+
+            _positions[i] = board;
+            _colours[i] = colour;
+            _moves[i] = new int[board.getMaxMoves()];
+            _moveCounts[i] = board.generateMoves(colour, _moves[i]);
+        }
+
+        // a random game to replay through the full mechanics
+        HnefataflBoard board = variant.createBoard();
+        int[] moves = new int[board.getMaxMoves()];
+        _game = new int[GAME_PLIES];
+        int colour = HnefataflObject.BLACK;
+        for (_gameLength = 0; _gameLength < GAME_PLIES && board.getWinner() == -1; _gameLength++) {
+            int count = board.generateMoves(colour, moves);
+            if (count == 0) {
+                break;
+            }
+            _game[_gameLength] = moves[rand.nextInt(count)];
+            board.makeMove(_game[_gameLength]);
+            colour = 1 - colour;
+        }
+        _variant = variant;
+
+        // a mix of valid and invalid orthogonal moves for isValidMove
+        _candidates = new int[CANDIDATES];
+        _candidateBoards = new int[CANDIDATES];
+        int size = variant.getSize();
+        for (int i = 0; i < CANDIDATES; i++) {
+            int b = rand.nextInt(POSITIONS);
+            int from = rand.nextInt(size * size);
+            int to = rand.nextBoolean() ? (from / size) * size + rand.nextInt(size)
+                                        : rand.nextInt(size) * size + from % size;
+            _candidates[i] = HnefataflBoard.packMove(from, to);
+            _candidateBoards[i] = b;
+        }
+    }
+
+    @Benchmark
+    public boolean isValidMove() {
+        int i = (_next++) & (CANDIDATES - 1);
+        int move = _candidates[i];
+        return _positions[_candidateBoards[i]].isValidMove(
+            HnefataflBoard.getMoveFrom(move), HnefataflBoard.getMoveTo(move));
+    }
+
+    @Benchmark
+    public boolean hasValidMoves() {
+        int i = (_next++) & (POSITIONS - 1);
+        return _positions[i].hasValidMoves(_colours[i]);
+    }
+
+    @Benchmark
+    public int movePiece() {
+        int i = (_next++) & (POSITIONS - 1);
+        HnefataflBoard board = _positions[i];
+        if (_moveCounts[i] == 0) {
+            return 0;
+        }
+        int captures = board.makeMove(_moves[i][_next % _moveCounts[i]]);
+        board.unmakeMove();
+        return captures;
+    }
+
+    @Benchmark
+    public int generateMoves() {
+        int i = (_next++) & (POSITIONS - 1);
+        return _positions[i].generateMoves(_colours[i], _moves[i]);
+    }
+
+    @Benchmark
+    public int playGame() {
+        HnefataflMechanics logic = new HnefataflMechanics(new HeadlessHnefataflState());
+        logic.setupGame(_variant);
+        int size = _variant.getSize();
+        for (int i = 0; i < _gameLength; i++) {
+            int from = HnefataflBoard.getMoveFrom(_game[i]), to = HnefataflBoard.getMoveTo(_game[i]);
+            HnefataflObject.Piece piece = logic.getPieceAt(from / size, from % size);
+            HnefataflObject.BoardLocation dest = new HnefataflObject.BoardLocation(to / size, to % size);
+            if (!logic.isValidMove(piece, dest)) {
+                throw new IllegalStateException("Replayed move rejected [move=" + i + "].");
+            }
+            logic.movePiece(piece, dest);
+        }
+        return logic.getWinningPlayer();
+    }
+
+    /** Positions on which to run the engine. */
+    protected HnefataflBoard[] _positions;
+
+    /** Colour to move in each position. */
+    protected int[] _colours;
+
+    /** Moves available in each position. */
+    protected int[][] _moves;
+    protected int[] _moveCounts;
+
+    /** Moves to check with isValidMove, and the position to check each in. */
+    protected int[] _candidates;
+    protected int[] _candidateBoards;
+
+    /** Variant and moves of the game replayed by playGame. */
+    protected HnefataflVariant _variant;
+    protected int[] _game;
+    protected int _gameLength;
+
+    /** Cycles through the positions and candidate moves. */
+    protected int _next;
+
+    /** Number of positions and candidate moves; both must be powers of two. */
+    protected static final int POSITIONS = 64;
+    protected static final int CANDIDATES = 1024;
+
+    /** Random moves played from the start to reach each position. */
+    protected static final int OPENING_PLIES = 12;
+
+    /** Longest game replayed by playGame. */
+    protected static final int GAME_PLIES = 200;
+
+    /** Seed for the random positions, so each run measures the same ones. */
+    protected static final long SEED = 2006L;
+}
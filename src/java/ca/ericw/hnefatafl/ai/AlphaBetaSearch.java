@@ -0,0 +1,436 @@
+package ca.ericw.hnefatafl.ai;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * Chooses moves for a computer player by way of an iterative-deepening
+ * alpha-beta (negamax) search over a {@link HnefataflBoard}. Each iteration
+ * searches one ply deeper than the last until the time budget runs out, at
+ * which point the best move of the deepest completed iteration is played.
+ * <p>
+ * Results are remembered in a {@link TranspositionTable} so that positions
+ * reached by more than one route, or searched by an earlier iteration, need
+ * not be searched again and are searched best move first. Positions covered
+ * by the {@link Tablebase}, if there is one, are scored from it outright.
+ * <p>
+ * The search makes and takes back moves on a single private copy of the
+ * board. It keeps that board and its per-ply move buffers between calls and
+ * so must not be shared between threads.
+ */
+public class AlphaBetaSearch {
+
+    /**
+     * Creates a search with a transposition table of its own.
+     */
+    public AlphaBetaSearch() {
+        this(new TranspositionTable(DEFAULT_TABLE_BITS));
+    }
+
+    /**
+     * Creates a search that remembers its results in the given table.
+     */
+    public AlphaBetaSearch(TranspositionTable table) {
+        _table = table;
+        _tablebase = Tablebase.getInstance();
+    }
+
+    /**
+     * Sets the table in which this search remembers its results. Searches
+     * running on several threads may share one table.
+     */
+    public void setTable(TranspositionTable table) {
+        _table = table;
+    }
+
+    /**
+     * Sets the endgame tablebase consulted by this search, or null for none.
+     * Searches use the server's tablebase unless told otherwise.
+     */
+    public void setTablebase(Tablebase tablebase) {
+        _tablebase = tablebase;
+    }
+
+    /**
+     * Sets the number of places by which the root moves are rotated before the
+     * first iteration. Helper threads searching the same position use different
+     * offsets so that they explore different parts of the tree first.
+     */
+    public void setRootOffset(int offset) {
+        _rootOffset = offset;
+    }
+
+    /**
+     * Returns the best move found for the given colour within the time budget
+     * as a packed move (see {@link HnefataflBoard#packMove}), or -1 if the
+     * colour has no valid moves. The given board is not modified.
+     *
+     * @param budget time allowed for the search, in milliseconds
+     */
+    public int findBestMove(HnefataflBoard board, int colour, long budget) {
+        return findBestMove(board, colour, budget, new AtomicBoolean());
+    }
+
+    /**
+     * Returns the best move found for the given colour, stopping when the time
+     * budget runs out or when the given flag is set, whichever comes first.
+     */
+    public int findBestMove(HnefataflBoard board, int colour, long budget, AtomicBoolean stop) {
+        _deadline = System.currentTimeMillis() + budget;
+        _stop = stop;
+        _aborted = false;
+        _nodes = 0;
+        _completedDepth = 0;
+        prepare(board);
+
+        int count = _board.generateMoves(colour, _rootMoves);
+        if (count == 0) {
+            return -1;
+        }
+        if (_rootOffset % count != 0) {
+            rotate(_rootMoves, count, _rootOffset % count);
+        }
+
+        int best = _rootMoves[0];
+        for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+            int move = searchRoot(colour, depth, count);
+            if (_aborted) {
+                break;
+            }
+            best = move;
+            _completedDepth = depth;
+
+            // there's no sense searching deeper once the result is known
+            if (Math.abs(_bestScore) > TABLEBASE_WIN - Tablebase.MAX_DISTANCE) {
+                break;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns the number of positions visited by the last search.
+     */
+    public long getNodeCount() {
+        return _nodes;
+    }
+
+    /**
+     * Returns the depth of the deepest iteration completed by the last search.
+     */
+    public int getCompletedDepth() {
+        return _completedDepth;
+    }
+
+    /**
+     * Returns the score of the best move found by the last completed iteration,
+     * from the point of view of the colour to move.
+     */
+    public int getBestScore() {
+        return _bestScore;
+    }
+
+    /**
+     * Searches every root move to the given depth and returns the best one.
+     * The best move is moved to the front of the root move list so that the
+     * next, deeper iteration searches it first.
+     */
+    protected int searchRoot(int colour, int depth, int count) {
+        int alpha = -INFINITY;
+        int bestIdx = 0;
+
+        for (int i = 0; i < count; i++) {
+            _board.makeMove(_rootMoves[i]);
+            int score = -negamax(1, depth - 1, opposing(colour), -INFINITY, -alpha);
+            _board.unmakeMove();
+            if (_aborted) {
+                return -1;
+            }
+            if (score > alpha) {
+                alpha = score;
+                bestIdx = i;
+            }
+        }
+
+        int best = _rootMoves[bestIdx];
+        System.arraycopy(_rootMoves, 0, _rootMoves, 1, bestIdx);
+        _rootMoves[0] = best;
+        _bestScore = alpha;
+        return best;
+    }
+
+    /**
+     * Returns the negamax score of the position at the given ply for the given
+     * colour to move, searched to the given remaining depth.
+     */
+    protected int negamax(int ply, int depth, int colour, int alpha, int beta) {
+        if ((++_nodes & CLOCK_CHECK_MASK) == 0 &&
+            (_stop.get() || System.currentTimeMillis() > _deadline)) {
+            _aborted = true;
+            return 0;
+        }
+
+        HnefataflBoard board = _board;
+        int winner = board.getWinner();
+        if (winner != -1) {
+            // prefer quicker wins and slower losses
+            return (winner == colour) ? WIN - ply : -(WIN - ply);
+        }
+        if (_tablebase != null) {
+            int value = _tablebase.probe(board, colour);
+            if (value != -1) {
+                // nearer results are better for the winner, as with the wins we find
+                switch (Tablebase.getResult(value)) {
+                case Tablebase.WIN:
+                    return TABLEBASE_WIN - Tablebase.getDistance(value);
+                case Tablebase.LOSS:
+                    return -(TABLEBASE_WIN - Tablebase.getDistance(value));
+                default:
+                    return 0;
+                }
+            }
+        }
+        if (depth == 0 || ply == MAX_DEPTH) {
+            return evaluate(board, colour);
+        }
+
+        // see if we've already searched this position deeply enough
+        long hash = board.getHash(colour);
+        long entry = _table.probe(hash);
+        int hashMove = -1;
+        if (entry != TranspositionTable.MISS) {
+            hashMove = TranspositionTable.getMove(entry);
+            if (TranspositionTable.getDepth(entry) >= depth) {
+                int score = fromTableScore(TranspositionTable.getScore(entry), ply);
+                switch (TranspositionTable.getBound(entry)) {
+                case TranspositionTable.EXACT:
+                    return score;
+                case TranspositionTable.LOWER_BOUND:
+                    if (score >= beta) {
+                        return score;
+                    }
+                    break;
+                case TranspositionTable.UPPER_BOUND:
+                    if (score <= alpha) {
+                        return score;
+                    }
+                    break;
+                }
+            }
+        }
+
+        int[] moves = _moves[ply];
+        int count = board.generateMoves(colour, moves);
+        if (count == 0) {
+            // a player without a move ends the game in a stalemate
+            return 0;
+        }
+
+        // search the best move from last time first
+        if (hashMove != -1) {
+            for (int i = 1; i < count; i++) {
+                if (moves[i] == hashMove) {
+                    moves[i] = moves[0];
+                    moves[0] = hashMove;
+                    break;
+                }
+            }
+        }
+
+        int alphaOrig = alpha;
+        int best = -INFINITY, bestMove = -1;
+        for (int i = 0; i < count; i++) {
+            board.makeMove(moves[i]);
+            int score = -negamax(ply + 1, depth - 1, opposing(colour), -beta, -alpha);
+            board.unmakeMove();
+            if (_aborted) {
+                return 0;
+            }
+            if (score > best) {
+                best = score;
+                bestMove = moves[i];
+                if (score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        int bound = (best <= alphaOrig) ? TranspositionTable.UPPER_BOUND :
+            (best >= beta) ? TranspositionTable.LOWER_BOUND : TranspositionTable.EXACT;
+        _table.store(hash, bestMove, toTableScore(best, ply), depth, bound);
+
+        return best;
+    }
+
+    /**
+     * Converts a score relative to the root into one relative to the given ply
+     * for storing in the table, so that a win found at one ply is scored
+     * correctly when the same position is reached at another.
+     */
+    protected static int toTableScore(int score, int ply) {
+        if (score >= WIN - MAX_DEPTH * 2) {
+            return score + ply;
+        } else if (score <= -(WIN - MAX_DEPTH * 2)) {
+            return score - ply;
+        }
+        return score;
+    }
+
+    /**
+     * Converts a score read from the table back into one relative to the root.
+     */
+    protected static int fromTableScore(int score, int ply) {
+        if (score >= WIN - MAX_DEPTH * 2) {
+            return score - ply;
+        } else if (score <= -(WIN - MAX_DEPTH * 2)) {
+            return score + ply;
+        }
+        return score;
+    }
+
+    /**
+     * Returns a static evaluation of the given board from the point of view of
+     * the given colour. White is rewarded for material, for keeping the King
+     * near a corner, and most of all for open lines to a corner; black for
+     * material and for hemming the King in.
+     */
+    protected int evaluate(HnefataflBoard board, int colour) {
+        int score = WHITE_PIECE * (board.countPieces(HnefataflObject.WHITE) - 1) -
+                    BLACK_PIECE * board.countPieces(HnefataflObject.BLACK);
+
+        int king = board.getKingSquare();
+        int size = board.getSize();
+        int row = king / size, col = king % size;
+
+        // nearer a corner is better for white
+        score -= CORNER_DISTANCE * (Math.min(row, size - 1 - row) + Math.min(col, size - 1 - col));
+
+        for (int dir = 0; dir < 4; dir++) {
+            int r = row + HnefataflBoard.DR[dir], c = col + HnefataflBoard.DC[dir];
+            int sq = board.getSquare(r, c);
+            if (sq != -1 && board.getColourAt(sq) == HnefataflObject.BLACK) {
+                // black is closing in on the King
+                score -= KING_GUARD;
+            }
+
+            // an open line to an escape square is very nearly a win
+            int last = -1;
+            while (sq != -1 && !board.isOccupied(sq)) {
+                last = sq;
+                r += HnefataflBoard.DR[dir];
+                c += HnefataflBoard.DC[dir];
+                sq = board.getSquare(r, c);
+            }
+            if (last != -1 && board.isEscapeSquare(last)) {
+                score += OPEN_CORNER;
+            }
+        }
+
+        return (colour == HnefataflObject.WHITE) ? score : -score;
+    }
+
+    /**
+     * Copies the given board to our private search board and sizes the per-ply
+     * move buffers to suit.
+     */
+    protected void prepare(HnefataflBoard board) {
+        if (_board == null || _board.getSize() != board.getSize()) {
+            _board = new HnefataflBoard(board.getSize());
+            _moves = new int[MAX_DEPTH + 1][];
+            for (int i = 0; i < _moves.length; i++) {
+                _moves[i] = new int[_board.getMaxMoves()];
+            }
+            _rootMoves = new int[_board.getMaxMoves()];
+        }
+        _board.copyFrom(board);
+    }
+
+    /**
+     * Rotates the first <code>count</code> moves of the given list left by
+     * the given number of places.
+     */
+    protected static void rotate(int[] moves, int count, int places) {
+        int[] head = new int[places];
+        System.arraycopy(moves, 0, head, 0, places);
+        System.arraycopy(moves, places, moves, 0, count - places);
+        System.arraycopy(head, 0, moves, count - places, places);
+    }
+
+    /**
+     * Returns the colour of the opponent to the colour given.
+     */
+    protected static int opposing(int colour) {
+        return (colour == HnefataflObject.BLACK) ? HnefataflObject.WHITE : HnefataflObject.BLACK;
+    }
+
+    /** Remembers the results of searched positions. */
+    protected TranspositionTable _table;
+
+    /** Endgame tablebase, or null if there is none. */
+    protected Tablebase _tablebase;
+
+    /** Board on which the search makes and takes back its moves. */
+    protected HnefataflBoard _board;
+
+    /** Move buffer for each ply of the search. */
+    protected int[][] _moves;
+
+    /** Moves available at the root, best first after each iteration. */
+    protected int[] _rootMoves;
+
+    /** Time, in milliseconds, at which the search must stop. */
+    protected long _deadline;
+
+    /** True if the current iteration ran out of time or was stopped. */
+    protected boolean _aborted;
+
+    /** Set by another thread to stop the current search. */
+    protected AtomicBoolean _stop;
+
+    /** Places by which the root moves are rotated before searching. */
+    protected int _rootOffset;
+
+    /** Number of positions visited by the current search. */
+    protected long _nodes;
+
+    /** Depth of the deepest completed iteration. */
+    protected int _completedDepth;
+
+    /** Score of the best root move of the deepest completed iteration. */
+    protected int _bestScore;
+
+    /** The deepest the search will ever look, in plies. */
+    protected static final int MAX_DEPTH = 32;
+
+    /** Score of a won position; wins further from the root score less. */
+    protected static final int WIN = 1000000;
+
+    /**
+     * Score of a position the tablebase says is won, less the distance to the
+     * win. Below the scores of wins found by search, so that those are not
+     * adjusted by ply in the transposition table.
+     */
+    protected static final int TABLEBASE_WIN = WIN - MAX_DEPTH * 2 - Tablebase.MAX_DISTANCE - 1;
+
+    /** A score greater than any other. */
+    protected static final int INFINITY = WIN + 1;
+
+    /** Size of the table created for a search that isn't given one, as a power of two. */
+    protected static final int DEFAULT_TABLE_BITS = 18;
+
+    /** The clock is checked every time this many positions have been visited. */
+    protected static final int CLOCK_CHECK_MASK = 1023;
+
+    /** Evaluation weights. */
+    protected static final int WHITE_PIECE = 120;
+    protected static final int BLACK_PIECE = 100;
+    protected static final int CORNER_DISTANCE = 10;
+    protected static final int KING_GUARD = 40;
+    protected static final int OPEN_CORNER = 400;
+}
@@ -0,0 +1,393 @@
+package ca.ericw.hnefatafl.ai;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * Chooses moves by Monte Carlo tree search, which needs no evaluation
+ * function and so copes with the larger boards better than
+ * {@link AlphaBetaSearch}. The tree is grown one leaf at a time, choosing the
+ * path by the UCT rule and scoring each new leaf by playing a random game out
+ * from it. The root move visited most often is played.
+ * <p>
+ * Leaves are chosen in batches, with each chosen path counted as a loss until
+ * its result is in so that the batch spreads across the tree. The playouts
+ * of a batch run at once on the calling thread and on helper threads.
+ * <p>
+ * Tree nodes live in parallel arrays allocated once, with each node's
+ * children stored side by side, so growing the tree creates no garbage.
+ * When the arrays are full the tree stops growing and further playouts
+ * start from its leaves. A search must not be shared between threads.
+ */
+public class MonteCarloSearch {
+
+    /**
+     * Creates a search.
+     *
+     * @param helpers runs playouts alongside the calling thread; usually shared
+     * between games
+     * @param threads the most threads, the caller's included, one search may use
+     */
+    public MonteCarloSearch(Executor helpers, int threads) {
+        this(helpers, threads, DEFAULT_NODES);
+    }
+
+    /**
+     * Creates a search whose tree holds up to the given number of nodes.
+     */
+    public MonteCarloSearch(Executor helpers, int threads, int nodes) {
+        _helpers = helpers;
+        _threads = Math.max(1, threads);
+        _move = new int[nodes];
+        _visits = new int[nodes];
+        _score = new int[nodes];
+        _firstChild = new int[nodes];
+        _childCount = new int[nodes];
+
+        int batch = _threads * BATCH_PER_THREAD;
+        _paths = new int[batch][MAX_PATH];
+        _pathLengths = new int[batch];
+        _leafColours = new int[batch];
+        _winners = new int[batch];
+        _leaves = new HnefataflBoard[batch];
+    }
+
+    /**
+     * Returns the move found for the given colour after the given number of
+     * playouts or when the time budget runs out, whichever comes first, as a
+     * packed move (see {@link HnefataflBoard#packMove}). Returns -1 if the
+     * colour has no valid moves. The given board is not modified.
+     *
+     * @param budget time allowed for the search, in milliseconds
+     */
+    public int findBestMove(HnefataflBoard board, int colour, int playouts, long budget) {
+        long deadline = System.currentTimeMillis() + budget;
+        prepare(board);
+
+        // the root is node zero
+        _nodeCount = 1;
+        _visits[0] = 0;
+        _score[0] = 0;
+        _firstChild[0] = -1;
+        expand(0, _root, colour);
+        if (_childCount[0] == 0) {
+            return -1;
+        }
+
+        _playouts = 0;
+        while (_playouts < playouts && System.currentTimeMillis() < deadline) {
+            int batch = Math.min(_leaves.length, playouts - _playouts);
+            for (int i = 0; i < batch; i++) {
+                select(i, colour);
+            }
+            runPlayouts(batch);
+            for (int i = 0; i < batch; i++) {
+                backup(i);
+            }
+            _playouts += batch;
+        }
+
+        int best = _firstChild[0];
+        for (int i = 1; i < _childCount[0]; i++) {
+            if (_visits[_firstChild[0] + i] > _visits[best]) {
+                best = _firstChild[0] + i;
+            }
+        }
+        return _move[best];
+    }
+
+    /**
+     * Returns the number of playouts made by the last search.
+     */
+    public int getPlayoutCount() {
+        return _playouts;
+    }
+
+    /**
+     * Returns the number of tree nodes grown by the last search.
+     */
+    public int getNodeCount() {
+        return _nodeCount;
+    }
+
+    /**
+     * Walks down the tree from the root by the UCT rule to a leaf, growing it
+     * by one level if there is room, and leaves the position reached in the
+     * given batch slot. Every node on the path is counted as visited and lost
+     * until {@link #backup} records the real result.
+     */
+    protected void select(int slot, int colour) {
+        HnefataflBoard board = _leaves[slot];
+        board.copyFrom(_root);
+        int[] path = _paths[slot];
+        int length = 0, node = 0;
+        path[length++] = node;
+        _visits[node]++;
+
+        while (board.getWinner() == -1 && length < MAX_PATH) {
+            if (_firstChild[node] == -1) {
+                // grow the leaf the second time it is reached
+                if (_visits[node] < 2 || !expand(node, board, colour)) {
+                    break;
+                }
+            }
+            if (_childCount[node] == 0) {
+                break;
+            }
+            node = selectChild(node);
+            board.applyMove(HnefataflBoard.getMoveFrom(_move[node]), HnefataflBoard.getMoveTo(_move[node]));
+            colour = 1 - colour;
+            path[length++] = node;
+            _visits[node]++;
+        }
+
+        _pathLengths[slot] = length;
+        _leafColours[slot] = colour;
+    }
+
+    /**
+     * Returns the child of the given node with the highest UCT value. Children
+     * not yet visited come first.
+     */
+    protected int selectChild(int node) {
+        double logVisits = Math.log(_visits[node]);
+        int first = _firstChild[node], best = first;
+        double bestValue = -1;
+        for (int child = first; child < first + _childCount[node]; child++) {
+            int visits = _visits[child];
+            if (visits == 0) {
+                return child;
+            }
+            double value = _score[child] / (2.0 * visits) + EXPLORATION * Math.sqrt(logVisits / visits);
+            if (value > bestValue) {
+                bestValue = value;
+                best = child;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds the children of the given node, one for each move available to the
+     * given colour on the given board. Returns false if the tree has no room.
+     */
+    protected boolean expand(int node, HnefataflBoard board, int colour) {
+        int count = board.generateMoves(colour, _moveBuffer);
+        if (_nodeCount + count > _move.length) {
+            return false;
+        }
+        _firstChild[node] = _nodeCount;
+        _childCount[node] = count;
+        for (int i = 0; i < count; i++) {
+            int child = _nodeCount++;
+            _move[child] = _moveBuffer[i];
+            _visits[child] = 0;
+            _score[child] = 0;
+            _firstChild[child] = -1;
+            _childCount[child] = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Plays out the positions in the first given number of batch slots, on
+     * this thread and as many helpers as are free to join in.
+     */
+    protected void runPlayouts(int batch) {
+        final Batch work = new Batch(batch);
+        for (int i = 1; i < Math.min(_threads, batch); i++) {
+            _helpers.execute(new Runnable() {
+                public void run() {
+                    work.playOut();
+                }
+            });
+        }
+        work.playOut();
+        try {
+            work.done.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the result of the playout in the given slot against every node
+     * on its path. A node's score counts for the colour that moved into it:
+     * two for a win and one for a draw.
+     */
+    protected void backup(int slot) {
+        int winner = _winners[slot];
+        int[] path = _paths[slot];
+        int mover = 1 - _leafColours[slot];
+        for (int i = _pathLengths[slot] - 1; i >= 0; i--) {
+            _score[path[i]] += (winner == mover) ? 2 : (winner == -1) ? 1 : 0;
+            mover = 1 - mover;
+        }
+    }
+
+    /**
+     * Plays random moves from the given position until the game ends or
+     * {@link #MAX_PLAYOUT_PLIES} moves have passed, and returns the winning
+     * colour or -1 for a draw. A move that wins on the spot is always taken.
+     */
+    protected static int playOut(HnefataflBoard board, int colour, int[] moves, Random rand) {
+        for (int ply = 0; ply < MAX_PLAYOUT_PLIES; ply++) {
+            int winner = board.getWinner();
+            if (winner != -1) {
+                return winner;
+            }
+            int count = board.generateMoves(colour, moves);
+            if (count == 0) {
+                return -1;
+            }
+            int move = findWinningMove(board, colour, moves, count);
+            if (move == -1) {
+                move = moves[rand.nextInt(count)];
+            }
+            board.applyMove(HnefataflBoard.getMoveFrom(move), HnefataflBoard.getMoveTo(move));
+            colour = 1 - colour;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a move that wins the game outright, or -1 if there is none.
+     * Only King moves can win for white, and only moves next to the King for
+     * black, so only those are examined.
+     */
+    protected static int findWinningMove(HnefataflBoard board, int colour, int[] moves, int count) {
+        int king = board.getKingSquare(), size = board.getSize();
+        for (int i = 0; i < count; i++) {
+            int from = HnefataflBoard.getMoveFrom(moves[i]), to = HnefataflBoard.getMoveTo(moves[i]);
+            if (colour == HnefataflObject.WHITE) {
+                if (from == king && board.isEscapeSquare(to)) {
+                    return moves[i];
+                }
+            } else if (Math.abs(to / size - king / size) + Math.abs(to % size - king % size) == 1) {
+                int captures = board.findCaptures(from, to);
+                for (int dir = 0; dir < 4; dir++) {
+                    if ((captures & (1 << dir)) != 0 && board.getCaptureSquare(to, dir) == king) {
+                        return moves[i];
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the given board to our root board and sizes the batch boards and
+     * move buffer to suit.
+     */
+    protected void prepare(HnefataflBoard board) {
+        if (_root == null || _root.getSize() != board.getSize()) {
+            _root = new HnefataflBoard(board.getSize());
+            for (int i = 0; i < _leaves.length; i++) {
+                _leaves[i] = new HnefataflBoard(board.getSize());
+            }
+            _moveBuffer = new int[_root.getMaxMoves()];
+        }
+        _root.copyFrom(board);
+    }
+
+    /** The playouts of one batch, shared out among the threads that run them. */
+    protected class Batch {
+        /** Counted down as each playout finishes. */
+        public CountDownLatch done;
+
+        public Batch(int size) {
+            _size = size;
+            done = new CountDownLatch(size);
+        }
+
+        /**
+         * Runs playouts until none are left unclaimed.
+         */
+        public void playOut() {
+            Random rand = _random.get();
+            int[] moves = null;
+            for (int slot; (slot = _next.getAndIncrement()) < _size; ) {
+                HnefataflBoard board = _leaves[slot];
+                if (moves == null) {
+                    moves = getMoveBuffer(board.getMaxMoves());
+                }
+                _winners[slot] = MonteCarloSearch.playOut(board, _leafColours[slot], moves, rand);
+                done.countDown();
+            }
+        }
+
+        protected int _size;
+        protected AtomicInteger _next = new AtomicInteger();
+    }
+
+    /**
+     * Returns this thread's playout move buffer, at least the given size.
+     */
+    protected static int[] getMoveBuffer(int size) {
+        int[] moves = _moveBuffers.get();
+        if (moves == null || moves.length < size) {
+            _moveBuffers.set(moves = new int[size]);
+        }
+        return moves;
+    }
+
+    /** Runs playouts alongside the calling thread. */
+    protected Executor _helpers;
+
+    /** The most threads a single search may use. */
+    protected int _threads;
+
+    /** The tree: each node's move, visit count, score and children. */
+    protected int[] _move;
+    protected int[] _visits;
+    protected int[] _score;
+    protected int[] _firstChild;
+    protected int[] _childCount;
+
+    /** Number of nodes in use. */
+    protected int _nodeCount;
+
+    /** Number of playouts made so far by the current search. */
+    protected int _playouts;
+
+    /** The position searched. */
+    protected HnefataflBoard _root;
+
+    /** Move buffer used when growing the tree. */
+    protected int[] _moveBuffer;
+
+    /** For each slot in a batch: the path taken, the position reached and its result. */
+    protected int[][] _paths;
+    protected int[] _pathLengths;
+    protected int[] _leafColours;
+    protected HnefataflBoard[] _leaves;
+    protected int[] _winners;
+
+    /** Each thread's random numbers and playout move buffer. */
+    protected static final ThreadLocal<Random> _random = new ThreadLocal<Random>() {
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+    protected static final ThreadLocal<int[]> _moveBuffers = new ThreadLocal<int[]>();
+
+    /** Nodes in the tree of a search that isn't given a size. */
+    protected static final int DEFAULT_NODES = 1 << 18;
+
+    /** Leaves chosen per batch for each thread. */
+    protected static final int BATCH_PER_THREAD = 8;
+
+    /** The longest path followed down the tree. */
+    protected static final int MAX_PATH = 256;
+
+    /** Playouts still going after this many moves are called a draw. */
+    protected static final int MAX_PLAYOUT_PLIES = 300;
+
+    /** Weight of exploration against exploitation in the UCT rule. */
+    protected static final double EXPLORATION = 1.4;
+}
@@ -0,0 +1,243 @@
+package ca.ericw.hnefatafl.ai;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ca.ericw.hnefatafl.archive.GameRecordReader;
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * A book of opening moves, looked up by position hash (see
+ * {@link HnefataflBoard#getHash}) so that a computer player can answer the
+ * common early positions without searching.
+ * <p>
+ * The book file is a table of 16 byte entries sorted by hash: the hash, the
+ * move packed as by {@link HnefataflBoard#packMove}, and the move's weight. A
+ * position with several book moves has one entry for each. The file is
+ * memory-mapped read-only, so every game on the server shares one copy.
+ * <p>
+ * Books are built from a game archive (see {@link #build}); the archive may
+ * come from the server or from self-play with
+ * {@link ca.ericw.hnefatafl.tools.GameSimulator}.
+ */
+public class OpeningBook {
+
+    /**
+     * Returns the book for this server, opening it on first use from the path
+     * given by the <code>hnefatafl.book</code> system property. Returns null if
+     * no book is configured or it could not be opened.
+     */
+    public static synchronized OpeningBook getInstance() {
+        String path = System.getProperty("hnefatafl.book");
+        if (_instance == null && !_failed && path != null) {
+            try {
+                _instance = new OpeningBook(new File(path));
+            } catch (IOException ioe) {
+                System.err.println("Unable to open opening book " +
+                                   "[file=" + path + ", error=" + ioe + "].");
+                _failed = true;
+            }
+        }
+        return _instance;
+    }
+
+    /**
+     * Builds a book from the first {@link #BOOK_PLIES} moves of every game in
+     * the given archive. Each move is weighted by how well it did for the
+     * side that played it: two for each win and one for each draw. Moves that
+     * were played fewer than the given number of times or that never avoided
+     * defeat are left out.
+     */
+    public static void build(File archive, File book, int minGames) throws IOException {
+        // tally the results of each move from each position
+        Map<Long, Map<Integer, int[]>> positions = new HashMap<Long, Map<Integer, int[]>>();
+        Map<String, HnefataflBoard> starts = new HashMap<String, HnefataflBoard>();
+        HnefataflBoard board = new HnefataflBoard(HnefataflBoard.MAX_SIZE);
+        GameRecordReader reader = new GameRecordReader(archive);
+        try {
+            while (reader.next()) {
+                HnefataflBoard start = starts.get(reader.getSetup());
+                if (start == null) {
+                    start = HnefataflConfigurations.getVariant(reader.getSetup()).createBoard();
+                    starts.put(reader.getSetup(), start);
+                }
+                board.copyFrom(start);
+
+                int colour = HnefataflObject.BLACK;
+                for (int i = 0; i < Math.min(BOOK_PLIES, reader.getMoveCount()); i++) {
+                    int move = reader.getMove(i);
+                    Map<Integer, int[]> moves = positions.get(board.getHash(colour));
+                    if (moves == null) {
+                        moves = new HashMap<Integer, int[]>();
+                        positions.put(board.getHash(colour), moves);
+                    }
+                    int[] tally = moves.get(move);
+                    if (tally == null) {
+                        moves.put(move, tally = new int[2]);
+                    }
+                    tally[0]++;
+                    tally[1] += (reader.getWinner() == colour) ? 2 : (reader.getWinner() == -1) ? 1 : 0;
+
+                    board.makeMove(move);
+                    colour = 1 - colour;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // write out the surviving moves in hash order
+        List<Long> hashes = new ArrayList<Long>(positions.keySet());
+        Collections.sort(hashes);
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(book)));
+        try {
+            for (Long hash : hashes) {
+                for (Map.Entry<Integer, int[]> entry : positions.get(hash).entrySet()) {
+                    int[] tally = entry.getValue();
+                    if (tally[0] >= minGames && tally[1] > 0) {
+                        out.writeLong(hash);
+                        out.writeInt(entry.getKey());
+                        out.writeInt(tally[1]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Opens the given book file.
+     */
+    public OpeningBook(File book) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(book, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            _entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        _count = _entries.capacity() / ENTRY_SIZE;
+    }
+
+    /**
+     * Returns the number of moves in the book.
+     */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * Picks a book move for the given colour on the given board, choosing
+     * among the book moves at random in proportion to their weights. Returns
+     * -1 if the position is not in the book. Book moves are checked against
+     * the board, so a hash collision never yields an illegal move.
+     */
+    public int probe(HnefataflBoard board, int colour, Random rand) {
+        long hash = board.getHash(colour);
+
+        // the reads below are absolute, so any number of threads may probe at once
+        int lo = 0, hi = _count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getHash(mid) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        int total = 0, end = lo;
+        for (; end < _count && getHash(end) == hash; end++) {
+            total += getWeight(end);
+        }
+        if (total == 0) {
+            return -1;
+        }
+
+        int pick = rand.nextInt(total);
+        for (int i = lo; i < end; i++) {
+            pick -= getWeight(i);
+            if (pick < 0) {
+                int move = getMove(i);
+                int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+                int squares = board.getSize() * board.getSize();
+                boolean legal = from < squares && to < squares &&
+                    board.getColourAt(from) == colour && board.isValidMove(from, to);
+                return legal ? move : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the hash of the given entry.
+     */
+    protected long getHash(int entry) {
+        return _entries.getLong(entry * ENTRY_SIZE);
+    }
+
+    /**
+     * Returns the move of the given entry.
+     */
+    protected int getMove(int entry) {
+        return _entries.getInt(entry * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Returns the weight of the given entry.
+     */
+    protected int getWeight(int entry) {
+        return _entries.getInt(entry * ENTRY_SIZE + 12);
+    }
+
+    /**
+     * Builds a book from the command line. Usage: <code>OpeningBook archive
+     * book [min-games]</code>.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: OpeningBook archive book [min-games]");
+            System.exit(1);
+        }
+        int minGames = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_MIN_GAMES;
+        build(new File(args[0]), new File(args[1]), minGames);
+        System.out.println("Book holds " + new OpeningBook(new File(args[1])).size() + " moves.");
+    }
+
+    /** The mapped book entries. */
+    protected MappedByteBuffer _entries;
+
+    /** Number of entries in the book. */
+    protected int _count;
+
+    /** The server's book, once opened. */
+    protected static OpeningBook _instance;
+
+    /** Whether opening the book has failed. */
+    protected static boolean _failed;
+
+    /** Size of each entry in bytes. */
+    protected static final int ENTRY_SIZE = 16;
+
+    /** Moves from the start of each game taken into the book. */
+    protected static final int BOOK_PLIES = 12;
+
+    /** Times a move must have been played to enter the book if not configured. */
+    protected static final int DEFAULT_MIN_GAMES = 3;
+}
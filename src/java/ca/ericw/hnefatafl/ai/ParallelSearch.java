@@ -0,0 +1,104 @@
+package ca.ericw.hnefatafl.ai;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+
+/**
+ * Spreads a single search across several threads in the "Lazy SMP" style.
+ * The calling thread runs the main search while helper threads search the
+ * same position at the same time, each starting from a different root move,
+ * all sharing one {@link TranspositionTable}. The helpers' only output is the
+ * table entries they leave behind, which let the main search cut off and
+ * order moves sooner; the main search's move is the one played. Every helper
+ * is stopped as soon as the main search finishes.
+ * <p>
+ * The number of threads a single search may use is capped so that one game
+ * cannot take every helper thread from the other games on the server.
+ */
+public class ParallelSearch {
+
+    /**
+     * Creates a parallel search.
+     *
+     * @param helpers runs the helper searches; usually shared between games
+     * @param threads the most threads, the caller's included, one search may use
+     * @param table table shared by the main and helper searches
+     */
+    public ParallelSearch(Executor helpers, int threads, TranspositionTable table) {
+        _helpers = helpers;
+        _threads = Math.max(1, threads);
+        _table = table;
+    }
+
+    /**
+     * Returns the best move found for the given colour within the time budget
+     * as a packed move, or -1 if the colour has no valid moves. The given
+     * board must not be modified until the search returns.
+     *
+     * @param budget time allowed for the search, in milliseconds
+     */
+    public int findBestMove(final HnefataflBoard board, final int colour, final long budget) {
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        for (int i = 1; i < _threads; i++) {
+            final int offset = i;
+            _helpers.execute(new Runnable() {
+                public void run() {
+                    // the main search may have finished before we got a thread
+                    if (!stop.get()) {
+                        AlphaBetaSearch search = getSearch(offset);
+                        search.findBestMove(board, colour, budget, stop);
+                    }
+                }
+            });
+        }
+
+        try {
+            AlphaBetaSearch search = getSearch(0);
+            int move = search.findBestMove(board, colour, budget, stop);
+            _completedDepth = search.getCompletedDepth();
+            return move;
+        } finally {
+            stop.set(true);
+        }
+    }
+
+    /**
+     * Returns the depth of the deepest iteration completed by the main search
+     * during the last call to {@link #findBestMove}.
+     */
+    public int getCompletedDepth() {
+        return _completedDepth;
+    }
+
+    /**
+     * Returns this thread's search, set up to use our table.
+     */
+    protected AlphaBetaSearch getSearch(int rootOffset) {
+        AlphaBetaSearch search = _searches.get();
+        search.setTable(_table);
+        search.setRootOffset(rootOffset);
+        return search;
+    }
+
+    /** Runs the helper searches. */
+    protected Executor _helpers;
+
+    /** The most threads a single search may use. */
+    protected int _threads;
+
+    /** Table shared by the main and helper searches. */
+    protected TranspositionTable _table;
+
+    /** Depth completed by the last main search. */
+    protected int _completedDepth;
+
+    /** Each thread keeps its own search and its buffers. */
+    protected static final ThreadLocal<AlphaBetaSearch> _searches = new ThreadLocal<AlphaBetaSearch>() {
+        protected AlphaBetaSearch initialValue() {
+            return new AlphaBetaSearch(null);
+        }
+    };
+}
@@ -0,0 +1,627 @@
+package ca.ericw.hnefatafl.ai;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * Endgame tablebase giving the perfect result of every position on a board
+ * of one size with few enough pieces left, King included.
+ * <p>
+ * There is one table for each count of black and white pieces. A position is
+ * indexed by the King's square, the combination of squares holding black
+ * pieces, the combination holding white pieces and the colour to move.
+ * Pieces other than the King can never stand on a corner or the throne, so
+ * those squares are left out of the combinations. Each position takes one
+ * byte: the result for the colour to move in the top two bits and the number
+ * of moves to that result in the bottom six, saturating at 63.
+ * <p>
+ * Tables are generated by retrograde analysis from the fewest pieces up.
+ * Each pass settles the positions whose result is reached in one more move
+ * than the last pass's: wins by a move to a position lost for the opponent
+ * and losses where every move reaches a position won for the opponent. A
+ * capture leads into a smaller table that is already complete. Whatever is
+ * unsettled when the passes stop changing anything is a draw. Each pass is
+ * split across threads.
+ */
+public class Tablebase {
+
+    /** The result of a position for the colour to move. */
+    public static final int DRAW = 0;
+    public static final int WIN = 1;
+    public static final int LOSS = 2;
+
+    /**
+     * Returns the tablebase for this server, opening it on first use from the
+     * path given by the <code>hnefatafl.tablebase</code> system property.
+     * Returns null if none is configured or it could not be opened.
+     */
+    public static synchronized Tablebase getInstance() {
+        String path = System.getProperty("hnefatafl.tablebase");
+        if (_instance == null && !_failed && path != null) {
+            try {
+                _instance = new Tablebase(new File(path));
+            } catch (IOException ioe) {
+                System.err.println("Unable to open tablebase " +
+                                   "[file=" + path + ", error=" + ioe + "].");
+                _failed = true;
+            }
+        }
+        return _instance;
+    }
+
+    /**
+     * Returns the result stored in a value returned by {@link #probe}.
+     */
+    public static int getResult(int value) {
+        return value >>> 6;
+    }
+
+    /**
+     * Returns the number of moves to the result stored in a value returned
+     * by {@link #probe}.
+     */
+    public static int getDistance(int value) {
+        return value & MAX_DISTANCE;
+    }
+
+    /**
+     * Generates every table for the given board size with up to the given
+     * number of pieces and writes them to the given file.
+     */
+    public static void generate(int size, int maxPieces, int threads, File file) throws Exception {
+        Tablebase tb = new Tablebase(size, maxPieces);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int pieces = 1; pieces <= maxPieces; pieces++) {
+                for (int black = pieces - 1; black >= 0; black--) {
+                    long start = System.currentTimeMillis();
+                    int passes = tb.generateTable(black, pieces - 1 - black, pool, threads);
+                    System.out.println("Generated " + black + " black, " + (pieces - 1 - black) +
+                                       " white in " + passes + " passes, " +
+                                       (System.currentTimeMillis() - start) + "ms.");
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        tb.write(file);
+    }
+
+    /**
+     * Opens the given tablebase file.
+     */
+    public Tablebase(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            _data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (_data.getInt(0) != MAGIC) {
+            throw new IOException("Not a tablebase [file=" + file + "].");
+        }
+        init(_data.getInt(4), _data.getInt(8));
+        _offsets = new long[MAX_PIECES][MAX_PIECES];
+        int tables = _data.getInt(12);
+        for (int i = 0; i < tables; i++) {
+            int pos = HEADER_SIZE + i * TABLE_HEADER_SIZE;
+            _offsets[_data.getInt(pos)][_data.getInt(pos + 4)] = _data.getLong(pos + 8);
+        }
+    }
+
+    /**
+     * Creates an empty tablebase for generation.
+     */
+    protected Tablebase(int size, int maxPieces) {
+        if (maxPieces < 1 || maxPieces > MAX_PIECES) {
+            throw new IllegalArgumentException("Unsupported piece count [pieces=" + maxPieces + "].");
+        }
+        init(size, maxPieces);
+        _tables = new byte[MAX_PIECES][MAX_PIECES][];
+    }
+
+    /**
+     * Returns the size of board covered by this tablebase.
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Returns the most pieces, King included, covered by this tablebase.
+     */
+    public int getMaxPieces() {
+        return _maxPieces;
+    }
+
+    /**
+     * Returns the value of the given position with the given colour to move,
+     * or -1 if the position is not covered. Tables are generated under the
+     * standard rules, so positions from variants with other rules are never
+     * covered. Pass the value to {@link #getResult} and {@link #getDistance}.
+     * May be called from any number of threads at once.
+     */
+    public int probe(HnefataflBoard board, int colour) {
+        if (board.getSize() != _size || !board.getRules().isStandard() || board.getWinner() != -1) {
+            return -1;
+        }
+        int black = board.countPieces(HnefataflObject.BLACK);
+        int white = board.countPieces(HnefataflObject.WHITE) - 1;
+        if (black + white + 1 > _maxPieces) {
+            return -1;
+        }
+
+        int[] blacks = new int[black], whites = new int[white];
+        int king = -1, nb = 0, nw = 0;
+        for (int sq = 0; sq < _size * _size; sq++) {
+            int c = board.getColourAt(sq);
+            if (c == -1) {
+                continue;
+            } else if (board.isKingAt(sq)) {
+                king = _kingIndex[sq];
+            } else if (_ordinary[sq] == -1) {
+                // only the King may stand here
+                return -1;
+            } else if (c == HnefataflObject.BLACK) {
+                blacks[nb++] = _ordinary[sq];
+            } else {
+                whites[nw++] = _ordinary[sq];
+            }
+        }
+
+        long idx = getIndex(king, blacks, black, whites, white, colour);
+        return _data.get((int)(_offsets[black][white] + idx)) & 0xFF;
+    }
+
+    /**
+     * Sets up the square numbering for the given board size.
+     */
+    protected void init(int size, int maxPieces) {
+        _size = size;
+        _maxPieces = maxPieces;
+        HnefataflBoard board = new HnefataflBoard(size);
+        _ordinary = new int[size * size];
+        _kingIndex = new int[size * size];
+        _ordinarySquares = new int[size * size];
+        _kingSquares = new int[size * size];
+        for (int sq = 0; sq < size * size; sq++) {
+            _kingIndex[sq] = board.isCorner(sq) ? -1 : _kingCount;
+            if (!board.isCorner(sq)) {
+                _kingSquares[_kingCount++] = sq;
+            }
+            _ordinary[sq] = (board.isCorner(sq) || board.isThrone(sq)) ? -1 : _ordinaryCount;
+            if (_ordinary[sq] != -1) {
+                _ordinarySquares[_ordinaryCount++] = sq;
+            }
+        }
+
+        _choose = new long[_ordinaryCount + 1][MAX_PIECES + 1];
+        for (int n = 0; n <= _ordinaryCount; n++) {
+            _choose[n][0] = 1;
+            for (int k = 1; k <= Math.min(n, MAX_PIECES); k++) {
+                _choose[n][k] = _choose[n-1][k-1] + (k <= n - 1 ? _choose[n-1][k] : 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of positions in the table with the given counts of
+     * black and white pieces.
+     */
+    protected long getTableSize(int black, int white) {
+        return _kingCount * _choose[_ordinaryCount][black] * _choose[_ordinaryCount][white] * 2;
+    }
+
+    /**
+     * Returns the index of a position within its table. The piece lists hold
+     * ordinary square numbers and need not be sorted.
+     */
+    protected long getIndex(int king, int[] blacks, int nb, int[] whites, int nw, int colour) {
+        sort(blacks, nb);
+        sort(whites, nw);
+        long idx = king;
+        idx = idx * _choose[_ordinaryCount][nb] + rank(blacks, nb);
+        idx = idx * _choose[_ordinaryCount][nw] + rank(whites, nw);
+        return idx * 2 + colour;
+    }
+
+    /**
+     * Returns the rank of a sorted combination of ordinary squares.
+     */
+    protected long rank(int[] squares, int n) {
+        long rank = 0;
+        for (int i = 0; i < n; i++) {
+            rank += _choose[squares[i]][i + 1];
+        }
+        return rank;
+    }
+
+    /**
+     * Fills in the sorted combination of ordinary squares with the given rank.
+     */
+    protected void unrank(long rank, int[] squares, int n) {
+        int x = _ordinaryCount - 1;
+        for (int i = n - 1; i >= 0; i--) {
+            while (_choose[x][i + 1] > rank) {
+                x--;
+            }
+            squares[i] = x;
+            rank -= _choose[x][i + 1];
+            x--;
+        }
+    }
+
+    /**
+     * Generates the table with the given piece counts; every table with fewer
+     * pieces must already be generated. Returns the number of passes taken.
+     */
+    protected int generateTable(final int black, final int white, ExecutorService pool, int threads)
+        throws Exception
+    {
+        long size = getTableSize(black, white);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Table too large [black=" + black +
+                                               ", white=" + white + "].");
+        }
+        final byte[] table = new byte[(int)size];
+        _tables[black][white] = table;
+
+        // captures lead into smaller tables, whose results may take longer to reach
+        int longest = 0;
+        for (int b = 0; b <= black; b++) {
+            for (int w = 0; w <= white; w++) {
+                if (b + w < black + white) {
+                    longest = Math.max(longest, _longest[b][w]);
+                }
+            }
+        }
+
+        int pass = 0;
+        boolean changed = true;
+        while (changed || pass <= longest) {
+            final int current = ++pass;
+            List<Callable<Integer>> jobs = new ArrayList<Callable<Integer>>();
+            final long chunk = (size + threads - 1) / threads;
+            for (int t = 0; t < threads; t++) {
+                final long from = t * chunk, to = Math.min(size, from + chunk);
+                jobs.add(new Callable<Integer>() {
+                    public Integer call() {
+                        return new Generator(black, white, table).pass(from, to, current);
+                    }
+                });
+            }
+            changed = false;
+            for (Future<Integer> job : pool.invokeAll(jobs)) {
+                if (job.get() > 0) {
+                    changed = true;
+                }
+            }
+        }
+
+        int most = 0;
+        for (byte value : table) {
+            if ((value & 0xFF) >>> 6 != DRAW && (value & 0xFF) >>> 6 != INVALID) {
+                most = Math.max(most, value & MAX_DISTANCE);
+            }
+        }
+        _longest[black][white] = most;
+        return pass;
+    }
+
+    /**
+     * Writes the generated tables to the given file.
+     */
+    protected void write(File file) throws IOException {
+        Map<Integer, byte[]> tables = new LinkedHashMap<Integer, byte[]>();
+        for (int b = 0; b < MAX_PIECES; b++) {
+            for (int w = 0; w < MAX_PIECES; w++) {
+                if (_tables[b][w] != null) {
+                    tables.put(b * MAX_PIECES + w, _tables[b][w]);
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(_size);
+            out.writeInt(_maxPieces);
+            out.writeInt(tables.size());
+            long offset = HEADER_SIZE + tables.size() * TABLE_HEADER_SIZE;
+            for (Map.Entry<Integer, byte[]> entry : tables.entrySet()) {
+                out.writeInt(entry.getKey() / MAX_PIECES);
+                out.writeInt(entry.getKey() % MAX_PIECES);
+                out.writeLong(offset);
+                offset += entry.getValue().length;
+            }
+            for (byte[] table : tables.values()) {
+                out.write(table);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sorts the first n squares of the given list; the lists are tiny.
+     */
+    protected static void sort(int[] squares, int n) {
+        for (int i = 1; i < n; i++) {
+            int sq = squares[i];
+            int j = i - 1;
+            for (; j >= 0 && squares[j] > sq; j--) {
+                squares[j + 1] = squares[j];
+            }
+            squares[j + 1] = sq;
+        }
+    }
+
+    /** Settles the positions in one slice of a table during one pass. */
+    protected class Generator {
+        public Generator(int black, int white, byte[] table) {
+            _black = black;
+            _white = white;
+            _table = table;
+            _board = new HnefataflBoard(_size);
+            _moves = new int[_board.getMaxMoves()];
+            _blacks = new int[black];
+            _whites = new int[white];
+            _childBlacks = new int[black];
+            _childWhites = new int[white];
+        }
+
+        /**
+         * Settles what it can of the given range of positions and returns the
+         * number settled.
+         */
+        public int pass(long from, long to, int pass) {
+            int settled = 0;
+            long perKing = _choose[_ordinaryCount][_black] * _choose[_ordinaryCount][_white] * 2;
+            for (long idx = from; idx < to; idx++) {
+                int value = _table[(int)idx] & 0xFF;
+                if (value != 0) {
+                    // already settled, or not a real position
+                    continue;
+                }
+
+                int colour = (int)(idx & 1);
+                long rest = idx >>> 1;
+                int king = (int)(idx / perKing);
+                unrank(rest % _choose[_ordinaryCount][_white], _whites, _white);
+                rest /= _choose[_ordinaryCount][_white];
+                unrank(rest % _choose[_ordinaryCount][_black], _blacks, _black);
+                if (!setUp(king)) {
+                    _table[(int)idx] = (byte)(INVALID << 6);
+                    continue;
+                }
+
+                value = evaluate(king, colour, pass);
+                if (value != 0) {
+                    _table[(int)idx] = (byte)value;
+                    settled++;
+                }
+            }
+            return settled;
+        }
+
+        /**
+         * Places the current pieces on our board, returning false if two of
+         * them share a square.
+         */
+        protected boolean setUp(int king) {
+            _board.clear();
+            int kingSq = _kingSquares[king];
+            _board.placePiece(kingSq, HnefataflObject.WHITE, true);
+            for (int i = 0; i < _black; i++) {
+                int sq = _ordinarySquares[_blacks[i]];
+                if (_board.isOccupied(sq)) {
+                    return false;
+                }
+                _board.placePiece(sq, HnefataflObject.BLACK, false);
+            }
+            for (int i = 0; i < _white; i++) {
+                int sq = _ordinarySquares[_whites[i]];
+                if (_board.isOccupied(sq)) {
+                    return false;
+                }
+                _board.placePiece(sq, HnefataflObject.WHITE, false);
+            }
+            return true;
+        }
+
+        /**
+         * Returns the settled value of the position on our board for the
+         * given colour, or zero if it can't be settled in this pass.
+         */
+        protected int evaluate(int king, int colour, int pass) {
+            int count = _board.generateMoves(colour, _moves);
+            if (count == 0) {
+                // stalemate; a draw, which is what unsettled positions become
+                return 0;
+            }
+
+            int bestWin = Integer.MAX_VALUE, worstLoss = 0;
+            boolean allLost = true;
+            for (int i = 0; i < count; i++) {
+                int child = getChildValue(king, colour, _moves[i]);
+                int result = child >>> 6, distance = child & MAX_DISTANCE;
+                // only results settled in earlier passes count, which makes the distances exact
+                boolean known = (child != 0) && (distance < pass || pass > MAX_DISTANCE);
+                if (known && result == LOSS) {
+                    bestWin = Math.min(bestWin, distance);
+                } else if (known && result == WIN) {
+                    worstLoss = Math.max(worstLoss, distance);
+                } else {
+                    allLost = false;
+                }
+            }
+
+            if (bestWin != Integer.MAX_VALUE) {
+                return (WIN << 6) | Math.min(bestWin + 1, MAX_DISTANCE);
+            } else if (allLost) {
+                return (LOSS << 6) | Math.min(worstLoss + 1, MAX_DISTANCE);
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the value, for the opponent, of the position reached by the
+         * given move. A move that wins outright leaves the opponent lost in
+         * zero moves.
+         */
+        protected int getChildValue(int king, int colour, int move) {
+            int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+            int captures = _board.makeMove(move);
+            try {
+                if (_board.getWinner() != -1) {
+                    return (LOSS << 6);
+                }
+
+                // work out the pieces left after the move
+                int childKing = king;
+                int nb = _black, nw = _white;
+                System.arraycopy(_blacks, 0, _childBlacks, 0, nb);
+                System.arraycopy(_whites, 0, _childWhites, 0, nw);
+                if (_kingSquares[king] == from) {
+                    childKing = _kingIndex[to];
+                } else if (colour == HnefataflObject.BLACK) {
+                    replace(_childBlacks, nb, _ordinary[from], _ordinary[to]);
+                } else {
+                    replace(_childWhites, nw, _ordinary[from], _ordinary[to]);
+                }
+                for (int dir = 0; dir < 4; dir++) {
+                    if ((captures & (1 << dir)) != 0) {
+                        int captured = _ordinary[_board.getCaptureSquare(to, dir)];
+                        if (colour == HnefataflObject.BLACK) {
+                            nw = remove(_childWhites, nw, captured);
+                        } else {
+                            nb = remove(_childBlacks, nb, captured);
+                        }
+                    }
+                }
+
+                long idx = getIndex(childKing, _childBlacks, nb, _childWhites, nw, 1 - colour);
+                return _tables[nb][nw][(int)idx] & 0xFF;
+
+            } finally {
+                _board.unmakeMove();
+            }
+        }
+
+        /**
+         * Replaces a square in a list of squares.
+         */
+        protected void replace(int[] squares, int n, int from, int to) {
+            for (int i = 0; i < n; i++) {
+                if (squares[i] == from) {
+                    squares[i] = to;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes a square from a list of squares and returns the new length.
+         */
+        protected int remove(int[] squares, int n, int sq) {
+            for (int i = 0; i < n; i++) {
+                if (squares[i] == sq) {
+                    squares[i] = squares[n - 1];
+                    return n - 1;
+                }
+            }
+            return n;
+        }
+
+        protected int _black, _white;
+        protected byte[] _table;
+        protected HnefataflBoard _board;
+        protected int[] _moves;
+        protected int[] _blacks, _whites;
+        protected int[] _childBlacks, _childWhites;
+    }
+
+    /**
+     * Generates a tablebase from the command line. Usage: <code>Tablebase
+     * size pieces file [threads]</code>.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: Tablebase size pieces file [threads]");
+            System.exit(1);
+        }
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) :
+            Runtime.getRuntime().availableProcessors();
+        generate(Integer.parseInt(args[0]), Integer.parseInt(args[1]), threads, new File(args[2]));
+    }
+
+    /** Size of the board covered. */
+    protected int _size;
+
+    /** Most pieces, King included, covered. */
+    protected int _maxPieces;
+
+    /** Number of each square among the squares other pieces may stand on, or -1. */
+    protected int[] _ordinary;
+    protected int[] _ordinarySquares;
+    protected int _ordinaryCount;
+
+    /** Number of each square among the squares the King may stand on, or -1. */
+    protected int[] _kingIndex;
+    protected int[] _kingSquares;
+    protected int _kingCount;
+
+    /** Binomial coefficients for ranking combinations of squares. */
+    protected long[][] _choose;
+
+    /** The tables being generated, by black and white piece count. */
+    protected byte[][][] _tables;
+
+    /** Longest distance to a result in each generated table. */
+    protected int[][] _longest = new int[MAX_PIECES][MAX_PIECES];
+
+    /** The mapped tablebase file, and the offset of each table within it. */
+    protected MappedByteBuffer _data;
+    protected long[][] _offsets;
+
+    /** The server's tablebase, once opened. */
+    protected static Tablebase _instance;
+
+    /** Whether opening the tablebase has failed. */
+    protected static boolean _failed;
+
+    /** Marks the unused indices of positions with two pieces on one square. */
+    protected static final int INVALID = 3;
+
+    /** The longest distance that can be stored. */
+    protected static final int MAX_DISTANCE = 63;
+
+    /** The most pieces any tablebase may cover. */
+    protected static final int MAX_PIECES = 8;
+
+    /** First four bytes of every tablebase file. */
+    protected static final int MAGIC = 0x484E5442;
+
+    /** Sizes of the file header and of each table's entry in it. */
+    protected static final int HEADER_SIZE = 16;
+    protected static final int TABLE_HEADER_SIZE = 16;
+}
@@ -0,0 +1,134 @@
+package ca.ericw.hnefatafl.ai;
+
+import java.util.Arrays;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+
+/**
+ * A fixed-size table of search results keyed on the Zobrist hash of a
+ * position (see {@link HnefataflBoard#getHash}). Each entry records the best
+ * move, score, searched depth, and bound type of a position so that a search
+ * which reaches the same position again need not search it again.
+ * <p>
+ * The table takes no locks and may be shared by several searching threads.
+ * Each entry is stored as two longs: the packed data, and the hash XORed with
+ * that data. A reader recomputes the hash from the two halves and ignores the
+ * entry if it does not match, so an entry torn by two threads writing at once
+ * is simply treated as a miss.
+ */
+public class TranspositionTable {
+
+    /** Bound type of a score that is exact. */
+    public static final int EXACT = 0;
+
+    /** Bound type of a score that is at least the true score (a beta cutoff). */
+    public static final int LOWER_BOUND = 1;
+
+    /** Bound type of a score that is at most the true score (a fail low). */
+    public static final int UPPER_BOUND = 2;
+
+    /** Value returned by {@link #probe} when the position is not in the table. */
+    public static final long MISS = 0L;
+
+    /**
+     * Creates a table with <code>2^sizeBits</code> entries. Each entry takes
+     * sixteen bytes.
+     */
+    public TranspositionTable(int sizeBits) {
+        _keys = new long[1 << sizeBits];
+        _data = new long[1 << sizeBits];
+        _mask = (1 << sizeBits) - 1;
+    }
+
+    /**
+     * Returns the packed entry stored for the given hash, or {@link #MISS} if
+     * there is none. Use the static accessors to unpack the entry.
+     */
+    public long probe(long hash) {
+        int idx = (int)hash & _mask;
+        long data = _data[idx];
+        return ((_keys[idx] ^ data) == hash) ? data : MISS;
+    }
+
+    /**
+     * Records the result of searching the given position, replacing whatever
+     * was previously stored in its slot.
+     *
+     * @param move best packed move found, or -1 if none
+     * @param score score of the position
+     * @param depth remaining depth to which the position was searched
+     * @param bound one of {@link #EXACT}, {@link #LOWER_BOUND} or {@link #UPPER_BOUND}
+     */
+    public void store(long hash, int move, int score, int depth, int bound) {
+        long data = ((long)score << 32) | VALID_BIT |
+                    ((long)Math.min(depth, 0xFF) << 20) | ((long)bound << 18) | packMove(move);
+        int idx = (int)hash & _mask;
+        _data[idx] = data;
+        _keys[idx] = hash ^ data;
+    }
+
+    /**
+     * Empties the table.
+     */
+    public void clear() {
+        Arrays.fill(_keys, 0L);
+        Arrays.fill(_data, 0L);
+    }
+
+    /**
+     * Returns the best packed move of an entry, or -1 if it has none.
+     */
+    public static int getMove(long entry) {
+        int move = (int)(entry & MOVE_MASK);
+        return (move == NO_MOVE) ? -1 : HnefataflBoard.packMove(move >>> 9, move & 0x1FF);
+    }
+
+    /**
+     * Returns the score of an entry.
+     */
+    public static int getScore(long entry) {
+        return (int)(entry >> 32);
+    }
+
+    /**
+     * Returns the depth to which the position of an entry was searched.
+     */
+    public static int getDepth(long entry) {
+        return (int)(entry >>> 20) & 0xFF;
+    }
+
+    /**
+     * Returns the bound type of an entry's score.
+     */
+    public static int getBound(long entry) {
+        return (int)(entry >>> 18) & 0x3;
+    }
+
+    /**
+     * Compresses a packed board move into eighteen bits.
+     */
+    protected static long packMove(int move) {
+        if (move == -1) {
+            return NO_MOVE;
+        }
+        return (HnefataflBoard.getMoveFrom(move) << 9) | HnefataflBoard.getMoveTo(move);
+    }
+
+    /** Hash XOR data of each entry. */
+    protected long[] _keys;
+
+    /** Packed data of each entry. */
+    protected long[] _data;
+
+    /** Mask selecting a slot from a hash. */
+    protected int _mask;
+
+    /** Set in every stored entry so that no stored entry equals {@link #MISS}. */
+    protected static final long VALID_BIT = 1L << 31;
+
+    /** Bits of an entry holding the compressed move. */
+    protected static final long MOVE_MASK = 0x3FFFFL;
+
+    /** Compressed move meaning no move. */
+    protected static final int NO_MOVE = 0x3FFFF;
+}
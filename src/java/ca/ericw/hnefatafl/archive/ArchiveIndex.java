@@ -0,0 +1,488 @@
+package ca.ericw.hnefatafl.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * An on-disk index of every position reached in a game archive, keyed by the
+ * position's hash (see {@link HnefataflBoard#getHash}). Use it to find the
+ * games that passed through a position and how those games ended.
+ * <p>
+ * The index file holds one 16 byte entry per position per game, sorted by
+ * hash: the hash, then the offset of the game in the archive shifted left two
+ * bits with the winning colour plus one in the bottom two. The entries are
+ * followed by the hash of the first entry of each {@link #PAGE_ENTRIES} entry
+ * page, the number of entries and {@link #MAGIC}. The page hashes are read
+ * into memory when the index is opened, so finding a position only touches
+ * the pages holding its entries.
+ * <p>
+ * An index is built by sorting runs of entries in memory, spilling each run
+ * to a temporary file, and merging the runs.
+ */
+public class ArchiveIndex {
+
+    /** How the games through a position turned out. */
+    public static class PositionStats {
+        /** Number of games that reached the position. */
+        public int games;
+
+        /** Number of those games won by each side, and drawn. */
+        public int blackWins, whiteWins, draws;
+
+        /**
+         * Returns the fraction of the games won by the given colour, or zero
+         * if there were no games.
+         */
+        public double getWinRate(int colour) {
+            int wins = (colour == HnefataflObject.BLACK) ? blackWins : whiteWins;
+            return (games == 0) ? 0 : (double)wins / games;
+        }
+    }
+
+    /**
+     * Builds an index of every position reached in the given archive.
+     */
+    public static void build(File archive, File index) throws IOException {
+        List<File> runs = new ArrayList<File>();
+        long[] keys = new long[RUN_ENTRIES], values = new long[RUN_ENTRIES];
+        int count = 0;
+
+        Map<String, HnefataflBoard> starts = new HashMap<String, HnefataflBoard>();
+        HnefataflBoard board = new HnefataflBoard(HnefataflBoard.MAX_SIZE);
+        GameRecordReader reader = new GameRecordReader(archive);
+        try {
+            while (reader.next()) {
+                HnefataflBoard start = starts.get(reader.getSetup());
+                if (start == null) {
+                    start = HnefataflConfigurations.getVariant(reader.getSetup()).createBoard();
+                    starts.put(reader.getSetup(), start);
+                }
+                board.copyFrom(start);
+
+                long value = (reader.getOffset() << 2) | (reader.getWinner() + 1);
+                int colour = HnefataflObject.BLACK;
+                for (int i = 0; i < reader.getMoveCount(); i++) {
+                    board.applyMove(HnefataflBoard.getMoveFrom(reader.getMove(i)),
+                                    HnefataflBoard.getMoveTo(reader.getMove(i)));
+                    colour = 1 - colour;
+                    if (count == RUN_ENTRIES) {
+                        runs.add(writeRun(index, runs.size(), keys, values, count));
+                        count = 0;
+                    }
+                    keys[count] = board.getHash(colour);
+                    values[count++] = value;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        runs.add(writeRun(index, runs.size(), keys, values, count));
+
+        try {
+            merge(runs, index);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    /**
+     * Opens the given index for lookups.
+     */
+    public ArchiveIndex(File index) throws IOException {
+        _file = new RandomAccessFile(index, "r");
+        FileChannel channel = _file.getChannel();
+        long length = channel.size();
+        if (length < 16) {
+            throw new IOException("Index too short [file=" + index + "].");
+        }
+        MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length - 16, 16);
+        _count = trailer.getLong(0);
+        if (trailer.getLong(8) != MAGIC) {
+            throw new IOException("Not an archive index [file=" + index + "].");
+        }
+
+        // read the first hash of each page
+        int pages = (int)((_count + PAGE_ENTRIES - 1) / PAGE_ENTRIES);
+        MappedByteBuffer sparse = channel.map(
+            FileChannel.MapMode.READ_ONLY, _count * ENTRY_SIZE, pages * 8L);
+        _pageKeys = new long[pages];
+        for (int i = 0; i < pages; i++) {
+            _pageKeys[i] = sparse.getLong(i * 8);
+        }
+
+        // map the entries in chunks, each a whole number of pages
+        long entryBytes = _count * ENTRY_SIZE;
+        _chunks = new MappedByteBuffer[(int)((entryBytes + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        for (int i = 0; i < _chunks.length; i++) {
+            long start = (long)i * CHUNK_SIZE;
+            _chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                     Math.min(CHUNK_SIZE, entryBytes - start));
+        }
+    }
+
+    /**
+     * Returns the number of positions in the index.
+     */
+    public long getEntryCount() {
+        return _count;
+    }
+
+    /**
+     * Returns how the games that reached the position with the given hash
+     * turned out.
+     */
+    public PositionStats getStats(long hash) {
+        PositionStats stats = new PositionStats();
+        for (long i = findFirst(hash); i < _count && getKey(i) == hash; i++) {
+            stats.games++;
+            switch ((int)(getValue(i) & 3) - 1) {
+            case HnefataflObject.BLACK: stats.blackWins++; break;
+            case HnefataflObject.WHITE: stats.whiteWins++; break;
+            default: stats.draws++; break;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the archive offsets of up to the given number of games that
+     * reached the position with the given hash. A game that passed through
+     * the position more than once is listed each time.
+     */
+    public long[] findGames(long hash, int max) {
+        long first = findFirst(hash), end = first;
+        while (end < _count && end - first < max && getKey(end) == hash) {
+            end++;
+        }
+        long[] offsets = new long[(int)(end - first)];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = getValue(first + i) >>> 2;
+        }
+        return offsets;
+    }
+
+    /**
+     * Closes the index.
+     */
+    public void close() throws IOException {
+        _chunks = null;
+        _file.close();
+    }
+
+    /**
+     * Returns the position of the first entry with the given hash, or of the
+     * first entry with a greater hash if there is none.
+     */
+    protected long findFirst(long hash) {
+        // find the last page starting below the hash; its entries may run on
+        int low = 0, high = _pageKeys.length - 1, page = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (_pageKeys[mid] < hash) {
+                page = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // then search the entries of that page
+        long lo = (long)page * PAGE_ENTRIES, hi = Math.min(lo + PAGE_ENTRIES, _count);
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (getKey(mid) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the hash of the given entry.
+     */
+    protected long getKey(long entry) {
+        long pos = entry * ENTRY_SIZE;
+        return _chunks[(int)(pos / CHUNK_SIZE)].getLong((int)(pos % CHUNK_SIZE));
+    }
+
+    /**
+     * Returns the game offset and result of the given entry.
+     */
+    protected long getValue(long entry) {
+        long pos = entry * ENTRY_SIZE + 8;
+        return _chunks[(int)(pos / CHUNK_SIZE)].getLong((int)(pos % CHUNK_SIZE));
+    }
+
+    /**
+     * Sorts the given entries and writes them to a temporary run file next to
+     * the index.
+     */
+    protected static File writeRun(File index, int run, long[] keys, long[] values, int count)
+        throws IOException
+    {
+        sort(keys, values, 0, count - 1);
+        File file = new File(index.getPath() + ".run" + run);
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER));
+        try {
+            for (int i = 0; i < count; i++) {
+                out.writeLong(keys[i]);
+                out.writeLong(values[i]);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Merges the sorted runs into the final index, writing the page hashes
+     * and trailer after the entries.
+     */
+    protected static void merge(List<File> runs, File index) throws IOException {
+        int n = runs.size();
+        DataInputStream[] ins = new DataInputStream[n];
+        long[] keys = new long[n], values = new long[n];
+        int[] heap = new int[n];
+        int heapSize = 0;
+        long[] pageKeys = new long[1024];
+        long count = 0;
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(index), IO_BUFFER));
+        try {
+            for (int i = 0; i < n; i++) {
+                ins[i] = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(runs.get(i)), IO_BUFFER));
+                if (readEntry(ins[i], keys, values, i)) {
+                    heap[heapSize++] = i;
+                    siftUp(heap, heapSize - 1, keys, values);
+                }
+            }
+
+            while (heapSize > 0) {
+                int run = heap[0];
+                if (count % PAGE_ENTRIES == 0) {
+                    int page = (int)(count / PAGE_ENTRIES);
+                    if (page == pageKeys.length) {
+                        long[] grown = new long[page * 2];
+                        System.arraycopy(pageKeys, 0, grown, 0, page);
+                        pageKeys = grown;
+                    }
+                    pageKeys[page] = keys[run];
+                }
+                out.writeLong(keys[run]);
+                out.writeLong(values[run]);
+                count++;
+
+                if (!readEntry(ins[run], keys, values, run)) {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(heap, heapSize, keys, values);
+            }
+
+            for (int i = 0; i < (count + PAGE_ENTRIES - 1) / PAGE_ENTRIES; i++) {
+                out.writeLong(pageKeys[i]);
+            }
+            out.writeLong(count);
+            out.writeLong(MAGIC);
+
+        } finally {
+            out.close();
+            for (DataInputStream in : ins) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the next entry of a run into the given slot. Returns false if the
+     * run is exhausted.
+     */
+    protected static boolean readEntry(DataInputStream in, long[] keys, long[] values, int slot)
+        throws IOException
+    {
+        try {
+            keys[slot] = in.readLong();
+            values[slot] = in.readLong();
+            return true;
+        } catch (EOFException eofe) {
+            return false;
+        }
+    }
+
+    /**
+     * Restores the heap order of the merge heap from the given slot upwards.
+     */
+    protected static void siftUp(int[] heap, int i, long[] keys, long[] values) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!less(heap[i], heap[parent], keys, values)) {
+                break;
+            }
+            int tmp = heap[i]; heap[i] = heap[parent]; heap[parent] = tmp;
+            i = parent;
+        }
+    }
+
+    /**
+     * Restores the heap order of the merge heap from the top downwards.
+     */
+    protected static void siftDown(int[] heap, int size, long[] keys, long[] values) {
+        int i = 0;
+        while (true) {
+            int least = i, left = 2 * i + 1, right = left + 1;
+            if (left < size && less(heap[left], heap[least], keys, values)) {
+                least = left;
+            }
+            if (right < size && less(heap[right], heap[least], keys, values)) {
+                least = right;
+            }
+            if (least == i) {
+                return;
+            }
+            int tmp = heap[i]; heap[i] = heap[least]; heap[least] = tmp;
+            i = least;
+        }
+    }
+
+    /**
+     * Returns true if entry a orders before entry b.
+     */
+    protected static boolean less(int a, int b, long[] keys, long[] values) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && values[a] < values[b]);
+    }
+
+    /**
+     * Sorts the given range of entries by hash and then by value.
+     */
+    protected static void sort(long[] keys, long[] values, int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            long pk = keys[mid], pv = values[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pk || (keys[i] == pk && values[i] < pv)) {
+                    i++;
+                }
+                while (keys[j] > pk || (keys[j] == pk && values[j] > pv)) {
+                    j--;
+                }
+                if (i <= j) {
+                    long tk = keys[i]; keys[i] = keys[j]; keys[j] = tk;
+                    long tv = values[i]; values[i] = values[j]; values[j] = tv;
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller half and loop on the larger
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            } else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            long k = keys[i], v = values[i];
+            int j = i - 1;
+            for (; j >= lo && (keys[j] > k || (keys[j] == k && values[j] > v)); j--) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+            }
+            keys[j + 1] = k;
+            values[j + 1] = v;
+        }
+    }
+
+    /**
+     * Builds or queries an index from the command line. Usage:
+     * <code>ArchiveIndex build archive index</code> or
+     * <code>ArchiveIndex query index setup [from-to ...]</code>, where the
+     * query reports the results of the games through each position reached by
+     * playing the given moves (as square numbers) from the setup.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("build")) {
+            long start = System.currentTimeMillis();
+            build(new File(args[1]), new File(args[2]));
+            System.out.println("Indexed in " + (System.currentTimeMillis() - start) + "ms.");
+
+        } else if (args.length >= 3 && args[0].equals("query")) {
+            ArchiveIndex index = new ArchiveIndex(new File(args[1]));
+            HnefataflBoard board = HnefataflConfigurations.getVariant(args[2]).createBoard();
+            int colour = HnefataflObject.BLACK;
+            for (int i = 3; i < args.length; i++) {
+                String[] squares = args[i].split("-");
+                board.applyMove(Integer.parseInt(squares[0]), Integer.parseInt(squares[1]));
+                colour = 1 - colour;
+                PositionStats stats = index.getStats(board.getHash(colour));
+                System.out.println(String.format(
+                    "%s: %d games, black %.1f%%, white %.1f%%", args[i], stats.games,
+                    100 * stats.getWinRate(HnefataflObject.BLACK),
+                    100 * stats.getWinRate(HnefataflObject.WHITE)));
+            }
+            index.close();
+
+        } else {
+            System.err.println("Usage: ArchiveIndex build archive index | " +
+                               "ArchiveIndex query index setup [from-to ...]");
+            System.exit(1);
+        }
+    }
+
+    /** The index file. */
+    protected RandomAccessFile _file;
+
+    /** Number of entries in the index. */
+    protected long _count;
+
+    /** Hash of the first entry of each page. */
+    protected long[] _pageKeys;
+
+    /** The entries, mapped in chunks of {@link #CHUNK_SIZE} bytes. */
+    protected MappedByteBuffer[] _chunks;
+
+    /** Last eight bytes of every index file. */
+    protected static final long MAGIC = 0x484E4546494E4458L;
+
+    /** Size of each entry in bytes. */
+    protected static final int ENTRY_SIZE = 16;
+
+    /** Entries per page of the sparse index; a page is 4k on disk. */
+    protected static final int PAGE_ENTRIES = 256;
+
+    /** Bytes mapped per chunk; a whole number of pages. */
+    protected static final long CHUNK_SIZE = 1L << 30;
+
+    /** Entries sorted in memory per run while building. */
+    protected static final int RUN_ENTRIES = 1 << 20;
+
+    /** Size of the buffers used to write runs and the index. */
+    protected static final int IO_BUFFER = 1 << 16;
+}
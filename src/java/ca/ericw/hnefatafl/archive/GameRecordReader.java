@@ -0,0 +1,201 @@
+package ca.ericw.hnefatafl.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+
+/**
+ * Reads games from an archive written by {@link GameRecordWriter}. The
+ * archive is memory-mapped a window at a time and each game is decoded in
+ * place as it is asked for, so the reader uses the same small amount of heap
+ * however large the archive is.
+ * <p>
+ * Call {@link #next} to move to each game in turn and then query it with the
+ * accessors, which describe the current game until the next call.
+ */
+public class GameRecordReader {
+
+    /**
+     * Opens the given archive for reading.
+     */
+    public GameRecordReader(File file) throws IOException {
+        _file = new RandomAccessFile(file, "r");
+        _channel = _file.getChannel();
+        _length = _channel.size();
+    }
+
+    /**
+     * Moves to the next game in the archive. Returns false, leaving the reader
+     * with no current game, if there are no more games or the rest of the
+     * archive is unreadable.
+     */
+    public boolean next() throws IOException {
+        _offset = _nextOffset;
+        _setup = null;
+        if (_offset >= _length) {
+            return false;
+        }
+
+        // map enough to read the header, then enough for the whole record
+        window(_offset, GameRecords.getRecordSize(0xFF, 0));
+        int pos = (int)(_offset - _base);
+        int nameLength = (pos + 2 < _buffer.limit()) ? _buffer.get(pos + 2) & 0xFF : 0;
+        if (_buffer.limit() - pos < GameRecords.getRecordSize(nameLength, 0) ||
+            (_buffer.get(pos) & 0xFF) != GameRecords.MAGIC) {
+            System.err.println("Corrupt game record [offset=" + _offset + "].");
+            return false;
+        }
+        int moveCount = _buffer.getShort(pos + 3 + nameLength) & 0xFFFF;
+        int recordSize = GameRecords.getRecordSize(nameLength, moveCount);
+        window(_offset, recordSize);
+        pos = (int)(_offset - _base);
+        if (_buffer.limit() - pos < recordSize) {
+            System.err.println("Truncated game record [offset=" + _offset + "].");
+            return false;
+        }
+
+        _winner = _buffer.get(pos + 1) - 1;
+        _setup = findSetup(pos + 3, nameLength);
+        _size = HnefataflConfigurations.getConfiguration(_setup)[0];
+        _moveCount = moveCount;
+        _moves = pos + 5 + nameLength;
+        _nextOffset = _offset + recordSize;
+        return true;
+    }
+
+    /**
+     * Positions the reader so the next call to {@link #next} reads the game
+     * starting at the given offset.
+     */
+    public void seek(long offset) {
+        _nextOffset = offset;
+    }
+
+    /**
+     * Returns the offset in the archive of the current game.
+     */
+    public long getOffset() {
+        return _offset;
+    }
+
+    /**
+     * Returns the name of the configuration the current game was played from.
+     */
+    public String getSetup() {
+        return _setup;
+    }
+
+    /**
+     * Returns the board size of the current game.
+     */
+    public int getBoardSize() {
+        return _size;
+    }
+
+    /**
+     * Returns the colour that won the current game, or -1 if it was drawn.
+     */
+    public int getWinner() {
+        return _winner;
+    }
+
+    /**
+     * Returns the number of moves in the current game.
+     */
+    public int getMoveCount() {
+        return _moveCount;
+    }
+
+    /**
+     * Returns the given move of the current game, packed as by
+     * {@link ca.ericw.hnefatafl.data.HnefataflBoard#packMove}.
+     */
+    public int getMove(int index) {
+        return GameRecords.decodeMove(_buffer.getShort(_moves + 2 * index) & 0xFFFF, _size);
+    }
+
+    /**
+     * Closes the archive.
+     */
+    public void close() throws IOException {
+        _buffer = null;
+        _file.close();
+    }
+
+    /**
+     * Ensures that the mapped window holds the given number of bytes from the
+     * given offset, or as many as the archive has.
+     */
+    protected void window(long offset, int bytes) throws IOException {
+        long end = Math.min(offset + bytes, _length);
+        if (_buffer != null && offset >= _base && end <= _base + _buffer.limit()) {
+            return;
+        }
+        _base = offset;
+        _buffer = _channel.map(FileChannel.MapMode.READ_ONLY, _base,
+                               Math.min(Math.max(WINDOW_SIZE, bytes), _length - _base));
+    }
+
+    /**
+     * Returns the configuration name stored at the given position, without
+     * creating a new string if it is a known one.
+     */
+    protected String findSetup(int pos, int length) {
+        for (String setup : _setups) {
+            if (setup.length() == length && matches(setup, pos)) {
+                return setup;
+            }
+        }
+        StringBuilder name = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            name.append((char)(_buffer.get(pos + i) & 0xFF));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns true if the bytes at the given position spell the given name.
+     */
+    protected boolean matches(String name, int pos) {
+        for (int i = 0; i < name.length(); i++) {
+            if (_buffer.get(pos + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The archive file. */
+    protected RandomAccessFile _file;
+    protected FileChannel _channel;
+
+    /** Length of the archive in bytes. */
+    protected long _length;
+
+    /** The mapped window of the archive, and its offset in the archive. */
+    protected MappedByteBuffer _buffer;
+    protected long _base;
+
+    /** Offsets of the current and the next game. */
+    protected long _offset, _nextOffset;
+
+    /** Details of the current game. */
+    protected String _setup;
+    protected int _size, _winner, _moveCount;
+
+    /** Position in the window of the current game's moves. */
+    protected int _moves;
+
+    /** Names of the known configurations. */
+    protected static final List<String> _setups =
+        new ArrayList<String>(HnefataflConfigurations.getConfigurationNames());
+
+    /** Bytes of the archive mapped at a time. */
+    protected static final int WINDOW_SIZE = 64 << 20;
+}
@@ -0,0 +1,76 @@
+package ca.ericw.hnefatafl.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+
+/**
+ * Appends finished games to an archive in the format described by
+ * {@link GameRecords}. Games are written one at a time, so an archive of any
+ * length can be produced without holding it in memory.
+ */
+public class GameRecordWriter {
+
+    /**
+     * Creates a writer that appends to the given archive file, creating it if
+     * need be.
+     */
+    public GameRecordWriter(File file) throws IOException {
+        this(new FileOutputStream(file, true));
+    }
+
+    /**
+     * Creates a writer that writes records to the given stream.
+     */
+    public GameRecordWriter(OutputStream out) {
+        _out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Writes a record of a game.
+     *
+     * @param setup name of the configuration the game was played from
+     * @param winner colour of the winner, or -1 if the game was drawn
+     * @param moves the moves of the game, packed as by
+     * {@link ca.ericw.hnefatafl.data.HnefataflBoard#packMove}
+     * @param count the number of moves
+     */
+    public void writeGame(String setup, int winner, int[] moves, int count) throws IOException {
+        if (setup.length() > 0xFF || count > GameRecords.MAX_MOVES) {
+            throw new IOException("Game too large to record [setup=" + setup +
+                                  ", moves=" + count + "].");
+        }
+        int size = HnefataflConfigurations.getConfiguration(setup)[0];
+
+        _out.writeByte(GameRecords.MAGIC);
+        _out.writeByte(winner + 1);
+        _out.writeByte(setup.length());
+        _out.writeBytes(setup);
+        _out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            _out.writeShort(GameRecords.encodeMove(moves[i], size));
+        }
+    }
+
+    /**
+     * Pushes any buffered records through to the underlying stream.
+     */
+    public void flush() throws IOException {
+        _out.flush();
+    }
+
+    /**
+     * Flushes and closes the writer.
+     */
+    public void close() throws IOException {
+        _out.close();
+    }
+
+    /** Stream to which records are written. */
+    protected DataOutputStream _out;
+}
@@ -0,0 +1,58 @@
+package ca.ericw.hnefatafl.archive;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+
+/**
+ * Defines the binary record in which a finished game is archived. An archive
+ * is simply one record after another, each laid out as:
+ * <pre>
+ *   byte     MAGIC
+ *   byte     colour of the winner plus one, or zero for a draw
+ *   byte     length of the setup name, followed by the name in ASCII
+ *   short    number of moves
+ *   short[]  the moves
+ * </pre>
+ * Each move takes two bytes: the square moved from in the top nine bits, the
+ * direction (an index into {@link HnefataflBoard#DR}) in the next two, and
+ * the distance moved less one in the bottom five. All values are big-endian.
+ */
+public class GameRecords {
+
+    /** First byte of every record, to catch readers that have lost their place. */
+    public static final int MAGIC = 0x48;
+
+    /** The most moves a single record can hold. */
+    public static final int MAX_MOVES = 0xFFFF;
+
+    /**
+     * Returns the size in bytes of a record with the given setup name length
+     * and number of moves.
+     */
+    public static int getRecordSize(int nameLength, int moveCount) {
+        return 5 + nameLength + 2 * moveCount;
+    }
+
+    /**
+     * Encodes a move packed as by {@link HnefataflBoard#packMove} on a board
+     * of the given size into its two-byte form.
+     */
+    public static int encodeMove(int move, int size) {
+        int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+        int dr = to / size - from / size, dc = to % size - from % size;
+        int dir = (dr > 0) ? 0 : (dc > 0) ? 1 : (dr < 0) ? 2 : 3;
+        int distance = Math.abs(dr + dc);
+        return (from << 7) | (dir << 5) | (distance - 1);
+    }
+
+    /**
+     * Decodes a two-byte move on a board of the given size into the form
+     * packed by {@link HnefataflBoard#packMove}.
+     */
+    public static int decodeMove(int code, int size) {
+        int from = (code >>> 7) & 0x1FF;
+        int dir = (code >>> 5) & 0x3;
+        int distance = (code & 0x1F) + 1;
+        int to = from + distance * (HnefataflBoard.DR[dir] * size + HnefataflBoard.DC[dir]);
+        return HnefataflBoard.packMove(from, to);
+    }
+}
@@ -88,7 +88,7 @@ public class HnefataflBoardView extends VirtualMediaPanel implements PlaceView {
         _pieceSelectorAlt = new SelectorCursor(pss2);
         
         // add the pieces
-        for (HnefataflObject.Piece piece : _gameobj.pieces) {
+        for (HnefataflObject.Piece piece : _ctrl.logic.getPieces()) {
             addPieceSprite(piece);
         }
         
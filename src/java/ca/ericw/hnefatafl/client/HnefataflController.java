@@ -1,5 +1,8 @@
 package ca.ericw.hnefatafl.client;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import ca.ericw.hnefatafl.data.HnefataflMechanics;
 import ca.ericw.hnefatafl.data.HnefataflObject;
 
@@ -10,10 +13,8 @@ import com.threerings.crowd.util.CrowdContext;
 import com.threerings.parlor.game.client.GameController;
 import com.threerings.parlor.turn.client.TurnGameController;
 import com.threerings.parlor.turn.client.TurnGameControllerDelegate;
-import com.threerings.presents.dobj.EntryAddedEvent;
-import com.threerings.presents.dobj.EntryRemovedEvent;
-import com.threerings.presents.dobj.EntryUpdatedEvent;
-import com.threerings.presents.dobj.SetListener;
+import com.threerings.presents.dobj.MessageEvent;
+import com.threerings.presents.dobj.MessageListener;
 import com.threerings.toybox.util.ToyBoxContext;
 import com.threerings.util.Name;
 
@@ -21,7 +22,7 @@ import com.threerings.util.Name;
  * Manages the client side mechanics of the game.
  */
 public class HnefataflController extends GameController
-    implements TurnGameController, SetListener
+    implements TurnGameController, MessageListener
 {
     /** Action performed when a piece is selected. */
     public static final String SELECT_ACTION = "PieceSelected";
@@ -113,31 +114,39 @@ public class HnefataflController extends GameController
         // nothing to see here, move along
     }
     
-    // from interface SetListener
-    public void entryAdded(EntryAddedEvent event) {
-        // ignore the pieces being added
-    }
-    
-    // from interface SetListener
-    public void entryUpdated(EntryUpdatedEvent event) {
-        if (event.getName().equals(HnefataflObject.PIECES)) {
-            // update the game mechanics
-            logic.updateState();
-            
-            // animate the piece moving
-            HnefataflObject.Piece moved = (HnefataflObject.Piece)event.getEntry();
-            _panel.boardView.movePiece(moved);
+    // from interface MessageListener
+    public void messageReceived(MessageEvent event) {
+        if (!event.getName().equals(HnefataflObject.MOVE_APPLIED) || logic == null) {
+            return;
         }
-    }
-    
-    // fromInterface SetListener
-    public void entryRemoved(EntryRemovedEvent event) {
-        if (event.getName().equals(HnefataflObject.PIECES)) {
-            // update the game mechanics
+        
+        // skip moves already in the snapshot we received on entering the game
+        Object[] args = event.getArgs();
+        int ply = (Integer)args[0], delta = (Integer)args[1];
+        if (ply < logic.getMoveCount()) {
+            return;
+        } else if (ply > logic.getMoveCount()) {
+            // we missed some moves; catch up from the game object's record of them,
+            // which may already include this one
             logic.updateState();
-            
-            // animate the piece being removed
-            HnefataflObject.Piece dead = (HnefataflObject.Piece)event.getOldEntry();
+            _selectedPiece = null;
+            _panel.boardView.initView();
+            if (ply != logic.getMoveCount()) {
+                if (ply > logic.getMoveCount()) {
+                    System.err.println("Missed moves in game " +
+                                       "[ply=" + ply + ", applied=" + logic.getMoveCount() + "].");
+                }
+                return;
+            }
+        }
+        
+        // apply the move to the game mechanics
+        List<HnefataflObject.Piece> captured = new ArrayList<HnefataflObject.Piece>();
+        HnefataflObject.Piece moved = logic.applyMove(delta, captured);
+        
+        // animate the piece moving and any pieces being removed
+        _panel.boardView.movePiece(moved);
+        for (HnefataflObject.Piece dead : captured) {
             _panel.boardView.removePiece(dead);
         }
     }
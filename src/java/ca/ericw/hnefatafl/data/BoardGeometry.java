@@ -0,0 +1,156 @@
+package ca.ericw.hnefatafl.data;
+
+/**
+ * The fixed layout of a board of one size: where each square lies, which
+ * squares are corners, the throne or on the edge, and the squares along each
+ * of the four orthogonal rays leading away from every square. Computing these
+ * once means the rules never redo the arithmetic on each move, so a move
+ * costs the same on any size of board.
+ * <p>
+ * The geometry of every size up to {@link HnefataflBoard#MAX_SIZE} is built
+ * when the class is loaded and shared by every board of that size.
+ */
+public class BoardGeometry {
+
+    /** Classification bits returned by {@link #getFlags}. */
+    public static final int CORNER = 1;
+    public static final int THRONE = 2;
+    public static final int EDGE = 4;
+
+    /** Squares on which only the King may stop. */
+    public static final int RESTRICTED = CORNER | THRONE;
+
+    /**
+     * Returns the geometry of boards with the given number of squares per
+     * side.
+     */
+    public static BoardGeometry getInstance(int size) {
+        return _geometries[size];
+    }
+
+    /**
+     * Builds the geometry of boards of the given size.
+     */
+    protected BoardGeometry(int size) {
+        int squares = size * size;
+        _size = size;
+        _throne = (size / 2) * size + (size / 2);
+        _rows = new int[squares];
+        _cols = new int[squares];
+        _flags = new int[squares];
+        _neighbours = new int[squares * 4];
+        _rays = new int[squares * 4][];
+
+        int last = size - 1;
+        for (int sq = 0; sq < squares; sq++) {
+            int row = sq / size, col = sq % size;
+            _rows[sq] = row;
+            _cols[sq] = col;
+            if ((row == 0 || row == last) && (col == 0 || col == last)) {
+                _flags[sq] |= CORNER;
+            }
+            if (sq == _throne) {
+                _flags[sq] |= THRONE;
+            }
+            if (row == 0 || row == last || col == 0 || col == last) {
+                _flags[sq] |= EDGE;
+            }
+
+            for (int dir = 0; dir < 4; dir++) {
+                int length = 0;
+                for (int r = row + HnefataflBoard.DR[dir], c = col + HnefataflBoard.DC[dir];
+                     r >= 0 && r < size && c >= 0 && c < size;
+                     r += HnefataflBoard.DR[dir], c += HnefataflBoard.DC[dir]) {
+                    length++;
+                }
+                int[] ray = new int[length];
+                for (int i = 0; i < length; i++) {
+                    ray[i] = (row + HnefataflBoard.DR[dir] * (i + 1)) * size +
+                        col + HnefataflBoard.DC[dir] * (i + 1);
+                }
+                _rays[sq * 4 + dir] = ray;
+                _neighbours[sq * 4 + dir] = (length > 0) ? ray[0] : -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of squares along each side of the board.
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Returns the row of the given square.
+     */
+    public int getRow(int sq) {
+        return _rows[sq];
+    }
+
+    /**
+     * Returns the column of the given square.
+     */
+    public int getColumn(int sq) {
+        return _cols[sq];
+    }
+
+    /**
+     * Returns the classification bits ({@link #CORNER}, {@link #THRONE},
+     * {@link #EDGE}) of the given square.
+     */
+    public int getFlags(int sq) {
+        return _flags[sq];
+    }
+
+    /**
+     * Returns the throne square.
+     */
+    public int getThrone() {
+        return _throne;
+    }
+
+    /**
+     * Returns the square next to the given square in the given direction (as
+     * indexed into {@link HnefataflBoard#DR}), or -1 if it is off the board.
+     */
+    public int getNeighbour(int sq, int dir) {
+        return _neighbours[sq * 4 + dir];
+    }
+
+    /**
+     * Returns the squares leading away from the given square in the given
+     * direction, nearest first, up to the edge of the board. The array is
+     * shared and must not be modified.
+     */
+    public int[] getRay(int sq, int dir) {
+        return _rays[sq * 4 + dir];
+    }
+
+    /** Number of squares along each side. */
+    protected int _size;
+
+    /** The throne square. */
+    protected int _throne;
+
+    /** Row and column of each square. */
+    protected int[] _rows, _cols;
+
+    /** Classification bits of each square. */
+    protected int[] _flags;
+
+    /** Neighbour of each square in each direction, indexed by square * 4 + direction. */
+    protected int[] _neighbours;
+
+    /** Ray from each square in each direction, indexed by square * 4 + direction. */
+    protected int[][] _rays;
+
+    /** The geometry of each board size. */
+    protected static final BoardGeometry[] _geometries = new BoardGeometry[HnefataflBoard.MAX_SIZE + 1];
+
+    static {
+        for (int size = 1; size <= HnefataflBoard.MAX_SIZE; size++) {
+            _geometries[size] = new BoardGeometry(size);
+        }
+    }
+}
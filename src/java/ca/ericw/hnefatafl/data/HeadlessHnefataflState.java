@@ -0,0 +1,88 @@
+package ca.ericw.hnefatafl.data;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A plain in-memory game state for running the game mechanics without a
+ * server. Changes take effect immediately and nobody is notified of them.
+ * Black is always the first player and white the second.
+ */
+public class HeadlessHnefataflState implements HnefataflState {
+
+    // from interface HnefataflState
+    public int getBoardSize() {
+        return _boardSize;
+    }
+
+    // from interface HnefataflState
+    public void setBoardSize(int value) {
+        _boardSize = value;
+    }
+
+    // from interface HnefataflState
+    public String getVariant() {
+        return _variant;
+    }
+
+    // from interface HnefataflState
+    public void setVariant(String value) {
+        _variant = value;
+    }
+
+    // from interface HnefataflState
+    public Iterable<HnefataflObject.Piece> getPieces() {
+        return Collections.unmodifiableCollection(_pieces.values());
+    }
+
+    // from interface HnefataflState
+    public void placePiece(HnefataflObject.Piece piece) {
+        piece.pieceId = _nextPieceId++;
+        _pieces.put(piece.getKey(), piece);
+    }
+
+    // from interface HnefataflState
+    public int[] getMoves() {
+        return _moves;
+    }
+
+    // from interface HnefataflState
+    public int getMoveCount() {
+        return _moveCount;
+    }
+
+    // from interface HnefataflState
+    public void moveApplied(int delta) {
+        if (_moveCount == _moves.length) {
+            int[] moves = new int[_moves.length * 2];
+            System.arraycopy(_moves, 0, moves, 0, _moveCount);
+            _moves = moves;
+        }
+        _moves[_moveCount++] = delta;
+    }
+
+    // from interface HnefataflState
+    public int getPlayerIdxOfColour(int colour) {
+        return (colour == HnefataflObject.BLACK || colour == HnefataflObject.WHITE) ? colour : -1;
+    }
+
+    /** Size of the board. */
+    protected int _boardSize;
+
+    /** Name of the variant being played. */
+    protected String _variant;
+
+    /** Pieces on the board, by key. */
+    protected Map<Comparable, HnefataflObject.Piece> _pieces =
+        new LinkedHashMap<Comparable, HnefataflObject.Piece>();
+
+    /** Moves made since the pieces were placed. */
+    protected int[] _moves = new int[64];
+
+    /** Number of moves made. */
+    protected int _moveCount;
+
+    /** Used to assign ids to pieces. */
+    protected int _nextPieceId = 0;
+}
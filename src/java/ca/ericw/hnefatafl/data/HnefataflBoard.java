@@ -0,0 +1,764 @@
+package ca.ericw.hnefatafl.data;
+
+import java.util.Random;
+
+/**
+ * A compact bitboard representation of the pieces on a Hnefatafl board. The
+ * board keeps one bitset for each of the black pieces, the white pieces, and
+ * the King, with the squares numbered in row-major order. The King is a white
+ * piece and so appears in both the white and King sets.
+ * <p>
+ * Movement, capture, and mobility rules run directly on the bitsets so that
+ * the game mechanics need never walk the set of pieces in the game object.
+ * The layout of the board comes from the shared {@link BoardGeometry} of its
+ * size, so a move costs the same on every size of board.
+ * <p>
+ * A board may also be asked to keep count of the moves open to each side
+ * as pieces come and go (see {@link #setTracksMobility}), which makes
+ * {@link #hasValidMoves} a constant time check. The counts cost a little on
+ * every move, so boards used for searching do without.
+ * <p>
+ * The board also maintains a Zobrist hash of the pieces on it, updated as
+ * pieces are placed, moved, and captured, to serve as a cheap position key.
+ * The hash keys are generated from a fixed seed and so are the same from one
+ * run to the next.
+ * <p>
+ * Moves made with {@link #makeMove} may be taken back, captures and all, with
+ * {@link #unmakeMove}, which lets searches and analysis explore millions of
+ * speculative moves on a single board without copying it or touching the
+ * distributed game object.
+ */
+public class HnefataflBoard {
+
+    /** The largest board, in squares per side, that a board can represent. */
+    public static final int MAX_SIZE = 19;
+
+    /**
+     * Creates a new, empty board with the given number of squares per side,
+     * playing by the standard rules.
+     */
+    public HnefataflBoard(int size) {
+        this(size, HnefataflRules.STANDARD);
+    }
+
+    /**
+     * Creates a new, empty board with the given number of squares per side,
+     * playing by the given rules.
+     */
+    public HnefataflBoard(int size, HnefataflRules rules) {
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported board size [size=" + size + "].");
+        }
+        _size = size;
+        _geom = BoardGeometry.getInstance(size);
+        _rules = rules;
+    }
+
+    /**
+     * Returns the number of squares along each side of the board.
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Returns the square index of the given row and column, or -1 if the
+     * location is not on the board.
+     */
+    public int getSquare(int row, int col) {
+        return isOnBoard(row, col) ? row * _size + col : -1;
+    }
+
+    /**
+     * Returns the rules by which this board is played.
+     */
+    public HnefataflRules getRules() {
+        return _rules;
+    }
+
+    /**
+     * Returns true if the given row and column lie on the board.
+     */
+    public boolean isOnBoard(int row, int col) {
+        return row >= 0 && row < _size && col >= 0 && col < _size;
+    }
+
+    /**
+     * Removes every piece from the board.
+     */
+    public void clear() {
+        for (int i = 0; i < WORDS; i++) {
+            _black[i] = 0L;
+            _white[i] = 0L;
+            _king[i] = 0L;
+        }
+        _hash = 0L;
+        _undoCount = 0;
+        if (_pieceMobility != null) {
+            recountMobility();
+        }
+    }
+
+    /**
+     * Places a piece of the given colour on an empty square.
+     */
+    public void placePiece(int sq, int colour, boolean isKing) {
+        if (colour == HnefataflObject.BLACK) {
+            set(_black, sq);
+            _hash ^= PIECE_KEYS[BLACK_KEY][sq];
+        } else if (isKing) {
+            set(_white, sq);
+            set(_king, sq);
+            _hash ^= PIECE_KEYS[KING_KEY][sq];
+        } else {
+            set(_white, sq);
+            _hash ^= PIECE_KEYS[WHITE_KEY][sq];
+        }
+        if (_pieceMobility != null) {
+            squareChanged(sq);
+        }
+    }
+
+    /**
+     * Removes whatever piece occupies the given square.
+     */
+    public void removePiece(int sq) {
+        if (test(_black, sq)) {
+            _hash ^= PIECE_KEYS[BLACK_KEY][sq];
+        } else if (test(_king, sq)) {
+            _hash ^= PIECE_KEYS[KING_KEY][sq];
+        } else if (test(_white, sq)) {
+            _hash ^= PIECE_KEYS[WHITE_KEY][sq];
+        }
+        clear(_black, sq);
+        clear(_white, sq);
+        clear(_king, sq);
+        if (_pieceMobility != null) {
+            squareChanged(sq);
+        }
+    }
+
+    /**
+     * Relocates the piece on one square to another, empty square. No rules
+     * are checked and no captures are made.
+     */
+    public void relocatePiece(int from, int to) {
+        int colour = getColourAt(from);
+        boolean king = isKingAt(from);
+        removePiece(from);
+        placePiece(to, colour, king);
+    }
+
+    /**
+     * Returns the colour of the piece on the given square, or -1 if the square
+     * is empty.
+     */
+    public int getColourAt(int sq) {
+        if (test(_black, sq)) {
+            return HnefataflObject.BLACK;
+        } else if (test(_white, sq)) {
+            return HnefataflObject.WHITE;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns true if a piece of either colour occupies the given square.
+     */
+    public boolean isOccupied(int sq) {
+        return test(_black, sq) || test(_white, sq);
+    }
+
+    /**
+     * Returns true if the King occupies the given square.
+     */
+    public boolean isKingAt(int sq) {
+        return test(_king, sq);
+    }
+
+    /**
+     * Returns true if the given square is one of the four corners.
+     */
+    public boolean isCorner(int sq) {
+        return (_geom._flags[sq] & BoardGeometry.CORNER) != 0;
+    }
+
+    /**
+     * Returns true if the given square is the throne.
+     */
+    public boolean isThrone(int sq) {
+        return sq == _geom._throne;
+    }
+
+    /**
+     * Returns true if the King escapes on reaching the given square.
+     */
+    public boolean isEscapeSquare(int sq) {
+        return (_geom._flags[sq] & _rules._escapes) != 0;
+    }
+
+    /**
+     * Returns true if the piece on the <code>from</code> square may legally
+     * move to the <code>to</code> square.
+     */
+    public boolean isValidMove(int from, int to) {
+        // there must be a piece to move and nothing at the destination
+        if (from == to || !isOccupied(from) || isOccupied(to)) {
+            return false;
+        }
+
+        // check for orthogonal movement
+        BoardGeometry geom = _geom;
+        int fr = geom._rows[from], fc = geom._cols[from];
+        int tr = geom._rows[to], tc = geom._cols[to];
+        if (fr != tr && fc != tc) {
+            return false;
+        }
+
+        // only the King may sit on the throne or move to a corner
+        if ((geom._flags[to] & BoardGeometry.RESTRICTED) != 0 && !isKingAt(from)) {
+            return false;
+        }
+
+        // check for a clear path
+        int step = (tr > fr) ? _size : (tr < fr) ? -_size : (tc > fc) ? 1 : -1;
+        for (int sq = from + step; sq != to; sq += step) {
+            if (isOccupied(sq)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the piece on the given square has a valid move.
+     */
+    public boolean hasValidMove(int sq) {
+        return addPieceMoves(sq, null, 0) > 0;
+    }
+
+    /**
+     * Returns true if any piece of the given colour has a valid move.
+     */
+    public boolean hasValidMoves(int colour) {
+        if (_pieceMobility != null) {
+            return _mobility[colour] > 0;
+        }
+        long[] bits = (colour == HnefataflObject.BLACK) ? _black : _white;
+        for (int i = 0; i < WORDS; i++) {
+            for (long word = bits[i]; word != 0L; word &= word - 1) {
+                if (hasValidMove((i << 6) + Long.numberOfTrailingZeros(word))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of valid moves open to the given colour. This takes
+     * constant time if the board tracks mobility and is a scan of the
+     * colour's pieces otherwise.
+     */
+    public int getMobility(int colour) {
+        if (_pieceMobility != null) {
+            return _mobility[colour];
+        }
+        long[] bits = (colour == HnefataflObject.BLACK) ? _black : _white;
+        int count = 0;
+        for (int i = 0; i < WORDS; i++) {
+            for (long word = bits[i]; word != 0L; word &= word - 1) {
+                count += countPieceMoves((i << 6) + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sets whether the board keeps count of the moves open to each colour as
+     * pieces are placed, moved, and captured.
+     */
+    public void setTracksMobility(boolean tracks) {
+        if (!tracks) {
+            _pieceMobility = null;
+        } else if (_pieceMobility == null) {
+            _pieceMobility = new int[MAX_SIZE * MAX_SIZE];
+            _mobilityOwner = new int[MAX_SIZE * MAX_SIZE];
+            recountMobility();
+        }
+    }
+
+    /**
+     * Returns true if the board keeps count of the moves open to each colour.
+     */
+    public boolean tracksMobility() {
+        return _pieceMobility != null;
+    }
+
+    /**
+     * Writes every valid move for the given colour into the supplied buffer as
+     * packed moves (see {@link #packMove}) and returns the number of moves
+     * written. The buffer must hold at least {@link #getMaxMoves} entries.
+     */
+    public int generateMoves(int colour, int[] moves) {
+        long[] bits = (colour == HnefataflObject.BLACK) ? _black : _white;
+        int count = 0;
+        for (int i = 0; i < WORDS; i++) {
+            for (long word = bits[i]; word != 0L; word &= word - 1) {
+                count = addPieceMoves((i << 6) + Long.numberOfTrailingZeros(word), moves, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes every valid move for the piece on the given square into the
+     * supplied buffer and returns the number of moves written.
+     */
+    public int generateMoves(int sq, int[] moves, int offset) {
+        return addPieceMoves(sq, moves, offset) - offset;
+    }
+
+    /**
+     * Returns the largest number of moves that {@link #generateMoves} could
+     * ever write for a board of this size.
+     */
+    public int getMaxMoves() {
+        return _size * _size * 2 * (_size - 1);
+    }
+
+    /**
+     * Packs a move between two squares into a single int.
+     */
+    public static int packMove(int from, int to) {
+        return (from << 16) | to;
+    }
+
+    /**
+     * Returns the origin square of a packed move.
+     */
+    public static int getMoveFrom(int move) {
+        return move >>> 16;
+    }
+
+    /**
+     * Returns the destination square of a packed move.
+     */
+    public static int getMoveTo(int move) {
+        return move & 0xFFFF;
+    }
+
+    /**
+     * Determines which pieces would be captured by moving the piece on the
+     * <code>from</code> square to the <code>to</code> square. The board is
+     * not modified. The result is a bitmask with bit <code>dir</code> set if
+     * the piece neighbouring the destination in direction <code>dir</code>
+     * (as indexed into {@link #DR} and {@link #DC}) would be captured.
+     */
+    public int findCaptures(int from, int to) {
+        HnefataflRules rules = _rules;
+        if (!rules._kingArmed && isKingAt(from)) {
+            return 0;
+        }
+
+        int colour = getColourAt(from);
+        int[] neighbours = _geom._neighbours;
+        int captures = 0;
+
+        for (int dir = 0; dir < 4; dir++) {
+            // the square we're moving from will be empty
+            int sq = neighbours[to * 4 + dir];
+            if (sq == -1 || sq == from || !isOccupied(sq)) {
+                continue;
+            }
+
+            if (isKingAt(sq)) {
+                // Kings usually require far more elaborate capturing moves
+                if (colour == HnefataflObject.BLACK &&
+                    ((rules._kingSides == 4) ? isKingSurrounded(sq, from, to) :
+                     isAnvil(neighbours[sq * 4 + dir], colour, from)))
+                {
+                    captures |= (1 << dir);
+                }
+
+            } else if (getColourAt(sq) != colour) {
+                // we have captured the piece if we bracket it with an ally or a hostile square
+                if (isAnvil(neighbours[sq * 4 + dir], colour, from)) {
+                    captures |= (1 << dir);
+                }
+            }
+        }
+
+        return captures;
+    }
+
+    /**
+     * Returns the square of the piece captured in the given direction from the
+     * destination of a move.
+     */
+    public int getCaptureSquare(int to, int dir) {
+        return _geom._neighbours[to * 4 + dir];
+    }
+
+    /**
+     * Moves the piece on the <code>from</code> square to the <code>to</code>
+     * square and removes any pieces it captures. The move is not checked for
+     * validity. Returns the capture bitmask as per {@link #findCaptures}.
+     */
+    public int applyMove(int from, int to) {
+        int captures = findCaptures(from, to);
+        relocatePiece(from, to);
+        for (int dir = 0; dir < 4; dir++) {
+            if ((captures & (1 << dir)) != 0) {
+                removePiece(getCaptureSquare(to, dir));
+            }
+        }
+        return captures;
+    }
+
+    /**
+     * Makes the given packed move, removing any pieces it captures, and
+     * remembers enough to take it back with {@link #unmakeMove}. The move is
+     * not checked for validity. Returns the capture bitmask as per
+     * {@link #findCaptures}.
+     */
+    public int makeMove(int move) {
+        int from = getMoveFrom(move), to = getMoveTo(move);
+        int captures = findCaptures(from, to);
+
+        // note the kind of each captured piece so it may be restored
+        int undo = from | (to << 9) | (captures << 18);
+        for (int dir = 0; dir < 4; dir++) {
+            if ((captures & (1 << dir)) != 0) {
+                int sq = getCaptureSquare(to, dir);
+                int kind = isKingAt(sq) ? KING_KEY : (test(_black, sq) ? BLACK_KEY : WHITE_KEY);
+                undo |= kind << (22 + 2 * dir);
+                removePiece(sq);
+            }
+        }
+        relocatePiece(from, to);
+
+        if (_undoCount == _undo.length) {
+            int[] undos = new int[_undo.length * 2];
+            System.arraycopy(_undo, 0, undos, 0, _undo.length);
+            _undo = undos;
+        }
+        _undo[_undoCount++] = undo;
+
+        return captures;
+    }
+
+    /**
+     * Takes back the last move made by {@link #makeMove}, restoring any pieces
+     * it captured.
+     */
+    public void unmakeMove() {
+        int undo = _undo[--_undoCount];
+        int from = undo & 0x1FF, to = (undo >>> 9) & 0x1FF, captures = (undo >>> 18) & 0xF;
+
+        relocatePiece(to, from);
+        for (int dir = 0; dir < 4; dir++) {
+            if ((captures & (1 << dir)) != 0) {
+                int kind = (undo >>> (22 + 2 * dir)) & 0x3;
+                placePiece(getCaptureSquare(to, dir),
+                           (kind == BLACK_KEY) ? HnefataflObject.BLACK : HnefataflObject.WHITE,
+                           kind == KING_KEY);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of moves made by {@link #makeMove} that have not
+     * been taken back.
+     */
+    public int getMoveCount() {
+        return _undoCount;
+    }
+
+    /**
+     * Returns the colour that has won the game on this board: white if the
+     * King has escaped, black if the King has been captured, or -1 if
+     * neither has yet happened.
+     */
+    public int getWinner() {
+        int king = getKingSquare();
+        if (king == -1) {
+            return HnefataflObject.BLACK;
+        }
+        return isEscapeSquare(king) ? HnefataflObject.WHITE : -1;
+    }
+
+    /**
+     * Returns the square occupied by the King, or -1 if it has been captured.
+     */
+    public int getKingSquare() {
+        for (int i = 0; i < WORDS; i++) {
+            if (_king[i] != 0L) {
+                return (i << 6) + Long.numberOfTrailingZeros(_king[i]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of pieces of the given colour on the board. The King
+     * counts as a white piece.
+     */
+    public int countPieces(int colour) {
+        long[] bits = (colour == HnefataflObject.BLACK) ? _black : _white;
+        int count = 0;
+        for (int i = 0; i < WORDS; i++) {
+            count += Long.bitCount(bits[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Makes this board an exact copy of the given board.
+     */
+    public void copyFrom(HnefataflBoard other) {
+        _size = other._size;
+        _geom = other._geom;
+        _rules = other._rules;
+        _hash = other._hash;
+        _undoCount = 0;
+        System.arraycopy(other._black, 0, _black, 0, WORDS);
+        System.arraycopy(other._white, 0, _white, 0, WORDS);
+        System.arraycopy(other._king, 0, _king, 0, WORDS);
+        if (_pieceMobility != null) {
+            recountMobility();
+        }
+    }
+
+    /**
+     * Returns the Zobrist hash of the position on this board with the given
+     * colour to move.
+     */
+    public long getHash(int colourToMove) {
+        long hash = _hash ^ SIZE_KEYS[_size];
+        return (colourToMove == HnefataflObject.WHITE) ? hash ^ WHITE_TO_MOVE_KEY : hash;
+    }
+
+    /**
+     * Returns the number of legal destinations of the piece on the given square.
+     */
+    protected int countPieceMoves(int sq) {
+        boolean king = isKingAt(sq);
+        int[] flags = _geom._flags;
+        int count = 0;
+        for (int dir = 0; dir < 4; dir++) {
+            int[] ray = _geom._rays[sq * 4 + dir];
+            for (int i = 0; i < ray.length && !isOccupied(ray[i]); i++) {
+                if (king || (flags[ray[i]] & BoardGeometry.RESTRICTED) == 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Brings the mobility counts up to date after a piece arrives at or
+     * leaves the given square. Only the piece on the square and the nearest
+     * piece in each direction from it can have gained or lost moves.
+     */
+    protected void squareChanged(int sq) {
+        recountPiece(sq);
+        for (int dir = 0; dir < 4; dir++) {
+            int[] ray = _geom._rays[sq * 4 + dir];
+            for (int i = 0; i < ray.length; i++) {
+                if (isOccupied(ray[i])) {
+                    recountPiece(ray[i]);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the moves counted for the given square with those of the
+     * piece now on it, if any.
+     */
+    protected void recountPiece(int sq) {
+        if (_mobilityOwner[sq] != -1) {
+            _mobility[_mobilityOwner[sq]] -= _pieceMobility[sq];
+        }
+        int colour = getColourAt(sq);
+        int moves = (colour == -1) ? 0 : countPieceMoves(sq);
+        _pieceMobility[sq] = moves;
+        _mobilityOwner[sq] = colour;
+        if (colour != -1) {
+            _mobility[colour] += moves;
+        }
+    }
+
+    /**
+     * Counts the moves of every piece on the board from scratch.
+     */
+    protected void recountMobility() {
+        _mobility[HnefataflObject.BLACK] = _mobility[HnefataflObject.WHITE] = 0;
+        for (int sq = 0; sq < _pieceMobility.length; sq++) {
+            _pieceMobility[sq] = 0;
+            _mobilityOwner[sq] = -1;
+            if (sq < _size * _size) {
+                recountPiece(sq);
+            }
+        }
+    }
+
+    /**
+     * Slides along each ray from the piece on the given square until blocked,
+     * appending each legal destination to the move buffer starting at the
+     * given count. If the buffer is null, stops at the first legal move.
+     * Returns the new count of moves.
+     */
+    protected int addPieceMoves(int sq, int[] moves, int count) {
+        boolean king = isKingAt(sq);
+        int[] flags = _geom._flags;
+
+        for (int dir = 0; dir < 4; dir++) {
+            int[] ray = _geom._rays[sq * 4 + dir];
+            for (int i = 0; i < ray.length; i++) {
+                int dest = ray[i];
+                if (isOccupied(dest)) {
+                    break;
+                }
+                // ordinary pieces may pass over the empty throne but not stop on it
+                if (king || (flags[dest] & BoardGeometry.RESTRICTED) == 0) {
+                    if (moves == null) {
+                        return count + 1;
+                    }
+                    moves[count++] = packMove(sq, dest);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns true if the given square would help a piece of the given colour
+     * moving from the given square capture the piece between them: that is,
+     * if it holds an ally (an armed King included) or is an empty square made
+     * hostile by the rules.
+     */
+    protected boolean isAnvil(int sq, int colour, int from) {
+        if (sq == -1 || sq == from) {
+            return false;
+        } else if (isOccupied(sq)) {
+            return getColourAt(sq) == colour && (_rules._kingArmed || !isKingAt(sq));
+        } else {
+            return (_geom._flags[sq] & _rules._anvils) != 0;
+        }
+    }
+
+    /**
+     * Returns true if the King on the given square would be surrounded after
+     * a black piece moves between the given squares. The throne and corners
+     * count as black pieces for the purposes of capturing the King, as do the
+     * edges unless the rules say otherwise.
+     */
+    protected boolean isKingSurrounded(int king, int from, int to) {
+        int[] neighbours = _geom._neighbours;
+        int[] flags = _geom._flags;
+        for (int dir = 0; dir < 4; dir++) {
+            int sq = neighbours[king * 4 + dir];
+            if (sq == -1) {
+                if (!_rules._edgesCaptureKing) {
+                    return false;
+                }
+            } else if (sq != to && (flags[sq] & BoardGeometry.RESTRICTED) == 0 &&
+                (sq == from || getColourAt(sq) != HnefataflObject.BLACK))
+            {
+                // the King is free on this side, and so is not capturable
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Sets the given bit in a bitset. */
+    protected static void set(long[] bits, int sq) {
+        bits[sq >> 6] |= (1L << (sq & 63));
+    }
+
+    /** Clears the given bit in a bitset. */
+    protected static void clear(long[] bits, int sq) {
+        bits[sq >> 6] &= ~(1L << (sq & 63));
+    }
+
+    /** Returns true if the given bit in a bitset is set. */
+    protected static boolean test(long[] bits, int sq) {
+        return (bits[sq >> 6] & (1L << (sq & 63))) != 0L;
+    }
+
+    /** Number of squares along each side of the board. */
+    protected int _size;
+
+    /** Layout of boards of our size. */
+    protected BoardGeometry _geom;
+
+    /** The rules by which the board is played. */
+    protected HnefataflRules _rules;
+
+    /** Bitsets of the black pieces, the white pieces (King included), and the King. */
+    protected long[] _black = new long[WORDS];
+    protected long[] _white = new long[WORDS];
+    protected long[] _king = new long[WORDS];
+
+    /** Zobrist hash of the pieces on the board. */
+    protected long _hash;
+
+    /** Records needed to take back each move made, packed into ints. */
+    protected int[] _undo = new int[64];
+
+    /** Number of moves that may be taken back. */
+    protected int _undoCount;
+
+    /** Moves open to each colour, if the board tracks mobility. */
+    protected int[] _mobility = new int[2];
+
+    /**
+     * Moves counted for the piece on each square and the colour they were
+     * counted to (-1 for none), or null if the board doesn't track mobility.
+     */
+    protected int[] _pieceMobility;
+    protected int[] _mobilityOwner;
+
+    /** Number of longs required to hold a bitset of the largest board. */
+    protected static final int WORDS = (MAX_SIZE * MAX_SIZE + 63) / 64;
+
+    /** Indices into {@link #PIECE_KEYS} for each kind of piece. */
+    protected static final int BLACK_KEY = 0;
+    protected static final int WHITE_KEY = 1;
+    protected static final int KING_KEY = 2;
+
+    /** Zobrist keys for each kind of piece on each square. */
+    protected static final long[][] PIECE_KEYS = new long[3][MAX_SIZE * MAX_SIZE];
+
+    /** Zobrist keys distinguishing boards of different sizes. */
+    protected static final long[] SIZE_KEYS = new long[MAX_SIZE + 1];
+
+    /** Zobrist key folded in when white is to move. */
+    protected static final long WHITE_TO_MOVE_KEY;
+
+    static {
+        // a fixed seed keeps hashes stable for anything stored on disk
+        Random rand = new Random(0x48696768L);
+        for (long[] keys : PIECE_KEYS) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rand.nextLong();
+            }
+        }
+        for (int i = 0; i < SIZE_KEYS.length; i++) {
+            SIZE_KEYS[i] = rand.nextLong();
+        }
+        WHITE_TO_MOVE_KEY = rand.nextLong();
+    }
+
+    /** Row and column deltas of the four orthogonal directions. */
+    public static final int[] DR = {1, 0, -1, 0};
+    public static final int[] DC = {0, 1, 0, -1};
+}
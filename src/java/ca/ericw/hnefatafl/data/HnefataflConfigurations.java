@@ -1,145 +1,202 @@
 package ca.ericw.hnefatafl.data;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 /**
  * The game of Hnefatafll has many, many variants which involve varying board
- * sizes and initial piece configurations. This class provides a set of
- * configurations available for play.
+ * sizes, initial piece configurations and rules. This class provides the set
+ * of variants available for play, read once from the variant file
+ * <code>rsrc/config/variants.xml</code> when the class is loaded.
  * <p>
- * Each configuration is represented as an array of integers. The first integer
- * represents the board size. Every subsequent group of three numbers represents
- * a piece's row, column, and owner in that order. The very last entry is that
- * of the White King.
+ * Each variant's board is also available as an array of integers. The first
+ * integer represents the board size. Every subsequent group of three numbers
+ * represents a piece's row, column, and owner in that order. The very last
+ * entry is that of the White King.
  */
 public class HnefataflConfigurations {
-    
-    /** Scottish variant of Ard-Ri, translated as "High King" */
-    protected static final int[] ARD_RI =
-    {
-        7, // Ard-Ri is played on a 7x7 board
-        
-        /* Attackers */
-        6, 2, HnefataflObject.BLACK,
-        6, 3, HnefataflObject.BLACK,
-        6, 4, HnefataflObject.BLACK,
-        5, 3, HnefataflObject.BLACK,
-        
-        0, 2, HnefataflObject.BLACK,
-        0, 3, HnefataflObject.BLACK,
-        0, 4, HnefataflObject.BLACK,
-        1, 3, HnefataflObject.BLACK,
-        
-        2, 0, HnefataflObject.BLACK,
-        3, 0, HnefataflObject.BLACK,
-        4, 0, HnefataflObject.BLACK,
-        3, 1, HnefataflObject.BLACK,
-        
-        2, 6, HnefataflObject.BLACK,
-        3, 6, HnefataflObject.BLACK,
-        4, 6, HnefataflObject.BLACK,
-        3, 5, HnefataflObject.BLACK,
-        
-        /* Defenders */
-        2, 2, HnefataflObject.WHITE,
-        2, 3, HnefataflObject.WHITE,
-        2, 4, HnefataflObject.WHITE,
-        4, 2, HnefataflObject.WHITE,
-        4, 3, HnefataflObject.WHITE,
-        4, 4, HnefataflObject.WHITE,
-        3, 2, HnefataflObject.WHITE,
-        3, 4, HnefataflObject.WHITE,
-        
-        /* King */
-        3, 3, HnefataflObject.WHITE,
-    };
-    
-    /** Finnish variant of Tablut */
-    protected static final int[] TABLUT =
-    {
-        9, // Tablut is played on an 9x9 board
-        
-        /* Attackers */
-        8, 3, HnefataflObject.BLACK,
-        8, 4, HnefataflObject.BLACK,
-        8, 5, HnefataflObject.BLACK,
-        7, 4, HnefataflObject.BLACK,
-        
-        0, 3, HnefataflObject.BLACK,
-        0, 4, HnefataflObject.BLACK,
-        0, 5, HnefataflObject.BLACK,
-        1, 4, HnefataflObject.BLACK,
-        
-        3, 0, HnefataflObject.BLACK,
-        4, 0, HnefataflObject.BLACK,
-        5, 0, HnefataflObject.BLACK,
-        4, 1, HnefataflObject.BLACK,
-        
-        3, 8, HnefataflObject.BLACK,
-        4, 8, HnefataflObject.BLACK,
-        5, 8, HnefataflObject.BLACK,
-        4, 7, HnefataflObject.BLACK,
-        
-        /* Defenders */
-        4, 2, HnefataflObject.WHITE,
-        4, 3, HnefataflObject.WHITE,
-        2, 4, HnefataflObject.WHITE,
-        3, 4, HnefataflObject.WHITE,
-        4, 5, HnefataflObject.WHITE,
-        4, 6, HnefataflObject.WHITE,
-        5, 4, HnefataflObject.WHITE,
-        6, 4, HnefataflObject.WHITE,
-        
-        /* King */
-        4, 4, HnefataflObject.WHITE,
-    };
-    
-    /** Modern variant of my own devising */
-    protected static final int[] ERRK =
-    {
-        7, // Errk is played on an 7x7 board
-        
-        /* Attackers */
-        1, 1, HnefataflObject.BLACK,
-        2, 1, HnefataflObject.BLACK,
-        
-        1, 4, HnefataflObject.BLACK,
-        1, 5, HnefataflObject.BLACK,
-        
-        5, 5, HnefataflObject.BLACK,
-        4, 5, HnefataflObject.BLACK,
-        
-        5, 1, HnefataflObject.BLACK,
-        5, 2, HnefataflObject.BLACK,
-        
-        /* Defenders */
-        2, 3, HnefataflObject.WHITE,
-        4, 3, HnefataflObject.WHITE,
-        3, 2, HnefataflObject.WHITE,
-        3, 4, HnefataflObject.WHITE,
-        
-        /* King */
-        3, 3, HnefataflObject.WHITE,
-    };
-    
+
+    /** The variant played when an unknown one is asked for. */
+    public static final String DEFAULT_VARIANT = "ardri";
+
+    /**
+     * Returns the variant with the given name. If no such variant exists,
+     * this method returns the default Ard-Ri variant.
+     */
+    public static HnefataflVariant getVariant(String name) {
+        HnefataflVariant variant = (name == null) ? null : _variants.get(name);
+        return (variant != null) ? variant : _variants.get(DEFAULT_VARIANT);
+    }
+
     /**
      * Returns the board configuration matching the given name. If no such
      * configuration exists, this method returns the default Ard-Ri config.
      */
     public static int[] getConfiguration(String name) {
-        int[] config = _configs.get(name);
-        return config != null ? config : ARD_RI;
+        return getVariant(name).getConfiguration();
+    }
+
+    /**
+     * Returns the names of every available configuration.
+     */
+    public static Set<String> getConfigurationNames() {
+        return Collections.unmodifiableSet(_variants.keySet());
+    }
+
+    /**
+     * Creates a board with the pieces of the given configuration in their
+     * starting positions, playing by the standard rules. Use
+     * {@link HnefataflVariant#createBoard} for a board that plays by the rules
+     * of its variant.
+     */
+    public static HnefataflBoard createBoard(int[] config) {
+        return new HnefataflVariant(null, config, HnefataflRules.STANDARD).createBoard();
+    }
+
+    /**
+     * Reads the variants from the given variant file.
+     */
+    protected static Map<String, HnefataflVariant> loadVariants(InputStream in) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        Map<String, HnefataflVariant> variants = new LinkedHashMap<String, HnefataflVariant>();
+        NodeList nodes = doc.getElementsByTagName("variant");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element elem = (Element)nodes.item(i);
+            String name = elem.getAttribute("name");
+            try {
+                variants.put(name, parseVariant(name, elem));
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Skipping invalid variant [name=" + name +
+                                   ", error=" + iae.getMessage() + "].");
+            }
+        }
+        return variants;
     }
-    
-    /** Mapping from configuration name to configuration. */
-    protected static Map<String, int[]> _configs;
-    
+
+    /**
+     * Builds a variant from its element in the variant file.
+     */
+    protected static HnefataflVariant parseVariant(String name, Element elem) {
+        // read the rules, leaving any not given at their standard values
+        HnefataflRules std = HnefataflRules.STANDARD;
+        NodeList rulesNodes = elem.getElementsByTagName("rules");
+        Element rulesElem = (rulesNodes.getLength() > 0) ? (Element)rulesNodes.item(0) : null;
+        HnefataflRules rules = new HnefataflRules(
+            getFlag(rulesElem, "kingArmed", std.isKingArmed()),
+            getFlag(rulesElem, "hostileCorners", std.areCornersHostile()),
+            getFlag(rulesElem, "hostileThrone", std.isThroneHostile()),
+            getFlag(rulesElem, "edgesCaptureKing", std.doEdgesCaptureKing()),
+            (rulesElem == null || rulesElem.getAttribute("kingSides").length() == 0) ?
+                std.getKingSides() : Integer.parseInt(rulesElem.getAttribute("kingSides")),
+            getFlag(rulesElem, "edgeEscape", std.isEdgeEscape()));
+        if (rules.isStandard()) {
+            rules = std;
+        }
+
+        // read the board, one row per line
+        NodeList boardNodes = elem.getElementsByTagName("board");
+        if (boardNodes.getLength() == 0) {
+            throw new IllegalArgumentException("No board");
+        }
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String line : boardNodes.item(0).getTextContent().split("\n")) {
+            if (line.trim().length() > 0) {
+                rows.add(line.trim().split("\\s+"));
+            }
+        }
+        int size = rows.size();
+        if (size % 2 == 0 || size > HnefataflBoard.MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported board size " + size);
+        }
+
+        // list the black pieces, then the white, and the King last of all
+        List<Integer> pieces = new ArrayList<Integer>();
+        int king = -1;
+        for (String piece : new String[] { "B", "W" }) {
+            for (int r = 0; r < size; r++) {
+                String[] row = rows.get(r);
+                if (row.length != size) {
+                    throw new IllegalArgumentException("Row " + r + " is not " + size + " squares long");
+                }
+                for (int c = 0; c < size; c++) {
+                    if (row[c].equals(piece)) {
+                        pieces.add(r);
+                        pieces.add(c);
+                        pieces.add(piece.equals("B") ? HnefataflObject.BLACK : HnefataflObject.WHITE);
+                    } else if (row[c].equals("K") && piece.equals("B")) {
+                        if (king != -1) {
+                            throw new IllegalArgumentException("More than one King");
+                        }
+                        king = r * size + c;
+                    } else if (!row[c].equals("B") && !row[c].equals("W") &&
+                               !row[c].equals("K") && !row[c].equals(".")) {
+                        throw new IllegalArgumentException("Unknown square '" + row[c] + "'");
+                    }
+                }
+            }
+        }
+        if (king == -1) {
+            throw new IllegalArgumentException("No King");
+        }
+
+        int[] config = new int[pieces.size() + 4];
+        config[0] = size;
+        for (int i = 0; i < pieces.size(); i++) {
+            config[i + 1] = pieces.get(i);
+        }
+        config[config.length - 3] = king / size;
+        config[config.length - 2] = king % size;
+        config[config.length - 1] = HnefataflObject.WHITE;
+        return new HnefataflVariant(name, config, rules);
+    }
+
+    /**
+     * Returns the value of the given boolean attribute, or the given default
+     * if it is absent.
+     */
+    protected static boolean getFlag(Element elem, String attr, boolean defval) {
+        String value = (elem == null) ? "" : elem.getAttribute(attr);
+        return (value.length() == 0) ? defval : Boolean.parseBoolean(value);
+    }
+
+    /** The resource holding the variant definitions. */
+    protected static final String VARIANT_FILE = "rsrc/config/variants.xml";
+
+    /** Mapping from variant name to variant. */
+    protected static Map<String, HnefataflVariant> _variants;
+
     static {
-        _configs = new HashMap<String, int[]>();
-        _configs.put("ardri", ARD_RI);
-        _configs.put("tablut", TABLUT);
-        _configs.put("errk", ERRK);
+        InputStream in = HnefataflConfigurations.class.getClassLoader().getResourceAsStream(VARIANT_FILE);
+        if (in == null) {
+            throw new IllegalStateException("Missing variant file [path=" + VARIANT_FILE + "].");
+        }
+        try {
+            _variants = Collections.unmodifiableMap(loadVariants(in));
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to read variant file [path=" + VARIANT_FILE +
+                                            ", error=" + e + "].");
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                // nothing to be done
+            }
+        }
+        if (!_variants.containsKey(DEFAULT_VARIANT)) {
+            throw new IllegalStateException("Variant file lacks the default variant [path=" +
+                                            VARIANT_FILE + ", variant=" + DEFAULT_VARIANT + "].");
+        }
     }
-    
 }
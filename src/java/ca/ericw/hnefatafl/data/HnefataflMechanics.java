@@ -5,34 +5,69 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * Sits on top of the game object (i.e., raw game data) to provide the mechanics
+ * Sits on top of the game state (i.e., raw game data) to provide the mechanics
  * of the game. Governs game setup, turn sequence, move validity, piece attack
  * and removal, and end game conditions.
+ * <p>
+ * The position itself is kept on a {@link HnefataflBoard}; once a game is
+ * under way the mechanics reads only from the board and merely reports the
+ * results of each move to the game state. The state is usually the
+ * distributed {@link HnefataflObject}, but any {@link HnefataflState} will do.
  */
 public class HnefataflMechanics {
 
     /**
      * Creates a new Hnefatafll mechanics object to control the game represented
-     * by the given game object.
+     * by the given game state.
      */
-    public HnefataflMechanics(HnefataflObject gameobj) {
-        _gameobj = gameobj;
+    public HnefataflMechanics(HnefataflState state) {
+        _state = state;
         _size = 0;
     }
     
     /**
-     * Updates the mechanics' internal representation of the game state to match
-     * that available from the game object.
+     * Rebuilds the mechanics' internal representation of the game state from
+     * scratch to match that available from the game state, by placing the
+     * starting pieces and replaying the moves made since. This is only
+     * required when first attaching to a game; thereafter the state is kept
+     * current one move at a time by {@link #movePiece} or {@link #applyMove}.
      */
     public void updateState() {
-        if (_size != _gameobj.boardSize) {
-            _size = _gameobj.boardSize;
-            _board = new int[_size * _size];
+        HnefataflRules rules = HnefataflConfigurations.getVariant(_state.getVariant()).getRules();
+        if (_board == null || _size != _state.getBoardSize() || _board.getRules() != rules) {
+            _size = _state.getBoardSize();
+            _board = new HnefataflBoard(_size, rules);
+            _board.setTracksMobility(true);
         }
-        Arrays.fill(_board, -1);
-        for(HnefataflObject.Piece p : _gameobj.pieces) {
-            _board[p.row * _size + p.col] = p.colour;
+        _board.clear();
+        _pieceSquares = new int[0];
+        _pieceIndex = new HnefataflObject.Piece[_size * _size];
+        for (HnefataflObject.Piece p : _state.getPieces()) {
+            pieceAdded(p);
         }
+        
+        _winner = -1;
+        _moveCount = 0;
+        int[] moves = _state.getMoves();
+        for (int i = 0, count = _state.getMoveCount(); i < count; i++) {
+            applyMove(moves[i], null);
+        }
+    }
+    
+    /**
+     * Places the given piece on the board and in the square to piece index.
+     */
+    protected void pieceAdded(HnefataflObject.Piece piece) {
+        if (piece.pieceId >= _pieceSquares.length) {
+            int[] squares = new int[Math.max(piece.pieceId + 1, _pieceSquares.length * 2)];
+            Arrays.fill(squares, -1);
+            System.arraycopy(_pieceSquares, 0, squares, 0, _pieceSquares.length);
+            _pieceSquares = squares;
+        }
+        int sq = _board.getSquare(piece.row, piece.col);
+        _board.placePiece(sq, piece.colour, piece.isKing);
+        _pieceSquares[piece.pieceId] = sq;
+        _pieceIndex[sq] = piece;
     }
     
     /**
@@ -40,7 +75,7 @@ public class HnefataflMechanics {
      * player to take the first turn.
      */
     public int getFirstTurnHolderIndex() {
-        return _gameobj.getPlayerIdxOfColour(HnefataflObject.BLACK);
+        return _state.getPlayerIdxOfColour(HnefataflObject.BLACK);
     }
     
     /**
@@ -56,17 +91,27 @@ public class HnefataflMechanics {
      * winner of the game. Returns -1 if the game has not yet been won.
      */
     public int getWinningPlayer() {
-        return _gameobj.getPlayerIdxOfColour(_winner);
+        return _state.getPlayerIdxOfColour(_winner);
     }
     
     /**
-     * Sets up a game ofHnefataflfl. Sets the board size and places all the pieces
-     * on the board.
-     * @param configuration configuration array from {@link HnefataflConfigurations}
+     * Sets up a game ofHnefataflfl. Sets the variant and board size and places
+     * all the pieces on the board.
+     * @param variant variant from {@link HnefataflConfigurations}
      */
-    public void setupGame(int[] config) {
-        // set up the board size
-        _gameobj.setBoardSize(config[0]);
+    public void setupGame(HnefataflVariant variant) {
+        int[] config = variant.getConfiguration();
+
+        // set up the variant and board size
+        _state.setVariant(variant.getName());
+        _state.setBoardSize(config[0]);
+        _size = config[0];
+        _board = new HnefataflBoard(_size, variant.getRules());
+        _board.setTracksMobility(true);
+        _pieceSquares = new int[0];
+        _pieceIndex = new HnefataflObject.Piece[_size * _size];
+        _moveCount = 0;
+        _winner = -1;
         
         // set up the pieces
         for (int i = 1; i < config.length; i += 3) {
@@ -76,164 +121,217 @@ public class HnefataflMechanics {
             piece.colour = config[i+2];
             piece.isKing = (i == config.length-3);
             
-            _gameobj.placePiece(piece);
+            _state.placePiece(piece);
+            pieceAdded(piece);
         }
-        
-        // update our internal state
-        updateState();
     }
     
     /**
-     * Returns true if the given colour has valid moves available, false if not.
+     * Returns the pieces now on the board.
      */
-    public boolean hasValidMoves(int colour) {
-        // check every piece of the given colour
-        for (HnefataflObject.Piece piece : _gameobj.pieces) {
-            if (piece.colour == colour && hasValidMove(piece)) {
-                return true;
+    public List<HnefataflObject.Piece> getPieces() {
+        List<HnefataflObject.Piece> pieces = new ArrayList<HnefataflObject.Piece>();
+        for (HnefataflObject.Piece piece : _pieceIndex) {
+            if (piece != null) {
+                pieces.add(piece);
             }
         }
-        
-        return false;
+        return pieces;
+    }
+    
+    /**
+     * Returns the number of moves made since the pieces were placed.
+     */
+    public int getMoveCount() {
+        return _moveCount;
+    }
+    
+    /**
+     * Returns true if the given colour has valid moves available, false if not.
+     * The mechanics' board keeps count of each colour's moves as the game
+     * goes, so this takes constant time.
+     */
+    public boolean hasValidMoves(int colour) {
+        return _board.hasValidMoves(colour);
+    }
+    
+    /**
+     * Returns the number of valid moves available to the given colour.
+     */
+    public int getMobility(int colour) {
+        return _board.getMobility(colour);
     }
     
     /**
      * Returns true if the given piece has a valid move available to it.
      */
     public boolean hasValidMove(HnefataflObject.Piece piece) {
-        // check validity of movement to every orthogonal space
-        for (int loc = 0; loc < _size; loc++) {
-            HnefataflObject.BoardLocation locR = new HnefataflObject.BoardLocation(loc, piece.col);
-            HnefataflObject.BoardLocation locC = new HnefataflObject.BoardLocation(piece.row, loc);
-            
-            if (isValidMove(piece, locR) || isValidMove(piece, locC)) {
-                // as soon as we've found a valid move we're done
-                return true;
-            }
-        }
-        
-        return false;
+        int sq = _board.getSquare(piece.row, piece.col);
+        return sq != -1 && _board.hasValidMove(sq);
+    }
+    
+    /**
+     * Writes every valid move for the given colour into the supplied buffer
+     * and returns the number written. Moves are packed as described by
+     * {@link HnefataflBoard#packMove}; the buffer must hold at least
+     * {@link HnefataflBoard#getMaxMoves} entries.
+     */
+    public int generateMoves(int colour, int[] moves) {
+        return _board.generateMoves(colour, moves);
+    }
+    
+    /**
+     * Returns the Zobrist hash of the current position with the given colour
+     * to move. See {@link HnefataflBoard#getHash}.
+     */
+    public long getPositionHash(int colourToMove) {
+        return _board.getHash(colourToMove);
+    }
+    
+    /**
+     * Returns the board on which the mechanics tracks the game state.
+     */
+    public HnefataflBoard getBoard() {
+        return _board;
     }
     
     /**
      * Returns true if a board location is a valid move for the given piece.
      */
     public boolean isValidMove(HnefataflObject.Piece piece, HnefataflObject.BoardLocation destination) {
-        // check that the location is valid and no piece is at the destination
-        if (getColourAt(destination.row, destination.col) == -2 ||
-            getColourAt(destination.row, destination.col) != -1) {
-            return false;
-        }
+        int to = _board.getSquare(destination.row, destination.col);
         
-        // check for orthogonal movement
-        if (piece.row != destination.row && piece.col != destination.col) {
+        // check that both locations are on the board and the piece is where it claims to be
+        if (to == -1 || !isPieceAt(piece)) {
             return false;
         }
         
-        // only the King may sit on the throne or move to a corner (and rightfully so! =P)
-        if ((isThrone(destination) || isCorner(destination)) && !piece.isKing) {
-            return false;
-        }
-        
-        // check for a clear path
-        int dr = destination.row > piece.row ? 1 : (destination.row < piece.row ? -1 : 0);
-        int dc = destination.col > piece.col ? 1 : (destination.col < piece.col ? -1 : 0); 
+        return _board.isValidMove(_board.getSquare(piece.row, piece.col), to);
+    }
+    
+    /**
+     * Returns true if the given piece is in play and on the square it claims
+     * to be on. This is the part of {@link #isValidMove} that depends on the
+     * identities of the pieces rather than on the board alone.
+     */
+    public boolean isPieceAt(HnefataflObject.Piece piece) {
+        int sq = _board.getSquare(piece.row, piece.col);
+        return sq != -1 && piece.pieceId >= 0 && piece.pieceId < _pieceSquares.length &&
+            _pieceSquares[piece.pieceId] == sq;
+    }
+    
+    /**
+     * Moves a game piece to a new location and reports the move, along with
+     * any pieces it captures, to the game state.
+     * <em>Note:</em> This method does not check that the move is valid.
+     */
+    public void movePiece(HnefataflObject.Piece piece, HnefataflObject.BoardLocation destination) {
+        int from = _board.getSquare(piece.row, piece.col);
+        int to = _board.getSquare(destination.row, destination.col);
         
-        if (dr != 0) {
-            // check along the rows between this piece and its destination
-            for (int row = piece.row + dr; row != destination.row; row += dr) {
-                if (getColourAt(row, piece.col) != -1) {
-                    return false;
-                }
-            }
-        } else if (dc != 0) {
-            // check along the columns between this piece and its destination
-            for (int col = piece.col + dc; col != destination.col; col += dc) {
-                if (getColourAt(piece.row, col) != -1) {
-                    return false;
+        // black wins if the King is among the pieces captured; ask the board, which
+        // knows where the King is, before it removes them
+        int captures = _board.findCaptures(from, to);
+        for (int dir = 0; dir < 4; dir++) {
+            if ((captures & (1 << dir)) != 0) {
+                int sq = _board.getCaptureSquare(to, dir);
+                if (_board.isKingAt(sq)) {
+                    _winner = HnefataflObject.BLACK;
                 }
+                _pieceSquares[_pieceIndex[sq].pieceId] = -1;
+                _pieceIndex[sq] = null;
             }
         }
         
-        return true;
+        // make the move on our board; the live game never takes a move back, so
+        // it keeps no undo records
+        int move = HnefataflBoard.packMove(from, to);
+        _board.applyMove(from, to);
+        
+        // white wins if the King successfully escapes
+        if (_board.isKingAt(to) && _board.isEscapeSquare(to)) {
+            _winner = HnefataflObject.WHITE;
+        }
+        
+        // move our own piece to its new location; the piece we were handed is
+        // trusted only for where it is, never for what it is
+        HnefataflObject.Piece moved = new HnefataflObject.Piece();
+        HnefataflObject.Piece ours = _pieceIndex[from];
+        moved.pieceId = ours.pieceId;
+        moved.colour = ours.colour;
+        moved.isKing = ours.isKing;
+        moved.row = destination.row;
+        moved.col = destination.col;
+        _pieceIndex[from] = null;
+        _pieceIndex[to] = moved;
+        _pieceSquares[moved.pieceId] = to;
+        
+        _moveCount++;
+        _state.moveApplied(HnefataflObject.packDelta(move, captures));
     }
     
     /**
-     * Moves a game piece to a new location. The new state, along with any
-     * pieces destroyed by the move, is reflected in the game object.
-     * <em>Note:</em> This method does not check that the move is valid.
+     * Applies a move made elsewhere and packed by
+     * {@link HnefataflObject#packDelta}. No rules are evaluated: the pieces
+     * captured are those named by the delta. The piece moved is replaced by a
+     * new piece object at its new location, which is returned; the pieces
+     * captured are added to the given list unless it is null.
      */
-    public void movePiece(HnefataflObject.Piece piece, HnefataflObject.BoardLocation destination) {
-        List<HnefataflObject.Piece> capturedPieces = new ArrayList<HnefataflObject.Piece>();
+    public HnefataflObject.Piece applyMove(int delta, List<HnefataflObject.Piece> captured) {
+        int move = HnefataflObject.getDeltaMove(delta);
+        int captures = HnefataflObject.getDeltaCaptures(delta);
+        int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
         
-        // white wins if the King successfully escapes to a corner tile
-        if (piece.isKing && isCorner(destination)) {
+        HnefataflObject.Piece piece = _pieceIndex[from];
+        HnefataflObject.Piece moved = new HnefataflObject.Piece();
+        moved.pieceId = piece.pieceId;
+        moved.colour = piece.colour;
+        moved.isKing = piece.isKing;
+        moved.row = to / _size;
+        moved.col = to % _size;
+        
+        _board.relocatePiece(from, to);
+        _pieceIndex[from] = null;
+        _pieceIndex[to] = moved;
+        _pieceSquares[moved.pieceId] = to;
+        if (moved.isKing && _board.isEscapeSquare(to)) {
             _winner = HnefataflObject.WHITE;
         }
         
-        // look for captured pieces
         for (int dir = 0; dir < 4; dir++) {
-            int r = destination.row + CAPTURE_CHECK_DR[dir];
-            int c = destination.col + CAPTURE_CHECK_DC[dir];
-            int farr = destination.row + 2 * CAPTURE_CHECK_DR[dir];
-            int farc = destination.col + 2 * CAPTURE_CHECK_DC[dir];
-            
-            // find the neighbouring piece in this direction
-            HnefataflObject.Piece neighbour = getPieceAt(r, c);
-            
-            if (neighbour != null) {
-                if (neighbour.getKey() == piece.getKey()) {
-                    // no sense comparing with ourselves; this space will be empty
-                    continue;
-                    
-                } else if (neighbour.isKing && piece.colour == HnefataflObject.BLACK) {
-                    // Kings require far more elaborate capturing moves
-                    if (isKingCapturable(neighbour, destination)) {
-                        capturedPieces.add(neighbour);
-                        _winner = HnefataflObject.BLACK;
-                    }
-                    
-                } else if (neighbour.colour == getOpposingColour(piece.colour)) {
-                    // we are beside an opposing piece
-                    int farneighbour = getColourAt(farr, farc);
-                    HnefataflObject.BoardLocation farloc = new HnefataflObject.BoardLocation(farr, farc);
-                    
-                    // and have captured it if we have bracketed it with an ally or a corner
-                    if (farneighbour == piece.colour || isCorner(farloc)) {
-                        capturedPieces.add(neighbour);
-                    }
-                    
+            if ((captures & (1 << dir)) != 0) {
+                int sq = _board.getCaptureSquare(to, dir);
+                HnefataflObject.Piece capd = _pieceIndex[sq];
+                if (capd.isKing) {
+                    _winner = HnefataflObject.BLACK;
+                }
+                _board.removePiece(sq);
+                _pieceIndex[sq] = null;
+                _pieceSquares[capd.pieceId] = -1;
+                if (captured != null) {
+                    captured.add(capd);
                 }
             }
         }
         
-        // move the piece to its new location
-        piece.row = destination.row;
-        piece.col = destination.col;
-        _gameobj.updatePieces(piece);
-        
-        // remove any pieces we captured
-        for (HnefataflObject.Piece capd : capturedPieces) {
-            _gameobj.removeFromPieces(capd.getKey());
-        }
+        _moveCount++;
+        return moved;
     }
     
     /**
      * Returns true if the given board position is a corner.
      */
     public boolean isCorner(HnefataflObject.BoardLocation loc) {
-        return (loc.row == 0 && loc.col == 0) ||
-               (loc.row == 0 && loc.col == _size - 1) ||
-               (loc.row == _size - 1 && loc.col == 0) || 
-               (loc.row == _size - 1 && loc.col == _size - 1);
+        int sq = (_board == null) ? -1 : _board.getSquare(loc.row, loc.col);
+        return sq != -1 && _board.isCorner(sq);
     }
     
     /**
      * Returns true if the given board position is the throne.
      */
     public boolean isThrone(HnefataflObject.BoardLocation loc) {
-        return (loc.row == _size / 2) &&
-               (loc.col == _size / 2);
+        int sq = (_board == null) ? -1 : _board.getSquare(loc.row, loc.col);
+        return sq != -1 && _board.isThrone(sq);
     }
     
     /**
@@ -248,67 +346,37 @@ public class HnefataflMechanics {
      * if the space is unoccupied, or -2 if the location is invalid.
      */
     protected int getColourAt(int row, int col) {
-        if (row < 0 || row >= _size || col < 0 || col >= _size) {
-            return -2;
-        } else {
-            return _board[row * _size + col];
-        }
+        int sq = _board.getSquare(row, col);
+        return (sq == -1) ? -2 : _board.getColourAt(sq);
     }
     
     /**
      * Returns the piece object for the piece occupying the given location, or
      * null if the space is empty or invalid.
      */
-    protected HnefataflObject.Piece getPieceAt(int row, int col) {
-        for (HnefataflObject.Piece p : _gameobj.pieces) {
-            if (row == p.row && col == p.col) {
-                return p;
-            }
-        }
-        return null;
-    }
-    
-    /**
-     * Returns true if the given king piece is in a capturable position when
-     * a black piece is moved to the given blocker position.
-     * <p>
-     * A king may only be captured by being surrounded. For the purposes of
-     * capture, we consider the throne, corners, and edges to contibute in
-     * the same way as an opposing piece.
-     */
-    protected boolean isKingCapturable(HnefataflObject.Piece king, HnefataflObject.BoardLocation blocker) {
-        for (int dir = 0; dir < 4; dir++) {
-            int r = king.row + CAPTURE_CHECK_DR[dir];
-            int c = king.col + CAPTURE_CHECK_DC[dir];
-            HnefataflObject.BoardLocation loc = new HnefataflObject.BoardLocation(r, c);
-            
-            if (!isCorner(loc) &&
-                !isThrone(loc) &&
-                !(blocker.row == r && blocker.col == c) &&
-                getColourAt(r, c) != HnefataflObject.BLACK &&
-                getColourAt(r, c) != -2)
-            {
-                // the king is free on this side, and so is not capturable
-                return false;
-            }
-        }
-        
-        return true;
+    public HnefataflObject.Piece getPieceAt(int row, int col) {
+        int sq = _board.getSquare(row, col);
+        return (sq == -1) ? null : _pieceIndex[sq];
     }
     
-    /** Game object on which we run the game logic. */
-    protected HnefataflObject _gameobj;
+    /** Game state on which we run the game logic. */
+    protected HnefataflState _state;
     
     /** Size of the game board. */
     protected int _size;
     
-    /** Board state as a row-major array. */
-    protected int[] _board;
+    /** Board state as a set of bitboards. */
+    protected HnefataflBoard _board;
+    
+    /** Current square of each piece, indexed by piece id, or -1 if captured. */
+    protected int[] _pieceSquares = new int[0];
+    
+    /** Piece occupying each square, or null if the square is empty. */
+    protected HnefataflObject.Piece[] _pieceIndex;
+    
+    /** Number of moves made since the pieces were placed. */
+    protected int _moveCount;
     
     /** Colour of the winner of the game, or -1 if no winner has yet been determined. */
     protected int _winner = -1;
-    
-    /** Direcions in which to check for captured pieces on after a piece is moved. */
-    protected static final int[] CAPTURE_CHECK_DR = {1, 0, -1, 0};
-    protected static final int[] CAPTURE_CHECK_DC = {0, 1, 0, -1};
 }
@@ -9,15 +9,26 @@ import com.threerings.util.Name;
 /**
  * Maintains the shared state of the game.
  */
-public class HnefataflObject extends GameObject implements TurnGameObject {
+public class HnefataflObject extends GameObject
+    implements TurnGameObject, HnefataflState
+{
 
     // AUTO-GENERATED: FIELDS START
     /** The field name of the <code>boardSize</code> field. */
     public static final String BOARD_SIZE = "boardSize";
 
+    /** The field name of the <code>variant</code> field. */
+    public static final String VARIANT = "variant";
+
     /** The field name of the <code>pieces</code> field. */
     public static final String PIECES = "pieces";
 
+    /** The field name of the <code>moves</code> field. */
+    public static final String MOVES = "moves";
+
+    /** The field name of the <code>moveCount</code> field. */
+    public static final String MOVE_COUNT = "moveCount";
+
     /** The field name of the <code>turnHolder</code> field. */
     public static final String TURN_HOLDER = "turnHolder";
 
@@ -26,6 +37,12 @@ public class HnefataflObject extends GameObject implements TurnGameObject {
     // AUTO-GENERATED: FIELDS END
     
     
+    /**
+     * The message posted when a move is made. Its arguments are the number of
+     * moves made before it and the move itself, packed by {@link #packDelta}.
+     */
+    public static final String MOVE_APPLIED = "moveApplied";
+    
     /** The index into the {@link #players} array of the black player. */
     public static final int BLACK = 0;
     
@@ -60,8 +77,22 @@ public class HnefataflObject extends GameObject implements TurnGameObject {
     /** Size of the board. Every Hnefatafll board is square and is of odd length. */
     public int boardSize;
     
-    /** The set of pieces dropped into the board. */
+    /** Name of the variant being played, from {@link HnefataflConfigurations}. */
+    public String variant;
+    
+    /** The set of pieces dropped into the board at the start of the game. */
     public DSet<Piece> pieces = new DSet<Piece>();
+    
+    /**
+     * The moves made since the pieces were placed, packed by
+     * {@link #packDelta}. Anyone entering a game in progress replays these;
+     * those already in the room follow the {@link #MOVE_APPLIED} messages and
+     * fall back on these only if they miss one.
+     */
+    public int[] moves = new int[0];
+    
+    /** The number of entries of {@link #moves} in use. */
+    public int moveCount;
 
     /** Username of the current turn holder or null. */
     public Name turnHolder;
@@ -69,6 +100,71 @@ public class HnefataflObject extends GameObject implements TurnGameObject {
     /** True if the game creator player plays black, false for white. */
     public boolean gameCreatorIsBlack;
 
+    // from interface HnefataflState
+    public int getBoardSize() {
+        return boardSize;
+    }
+
+    // from interface HnefataflState
+    public String getVariant() {
+        return variant;
+    }
+
+    // from interface HnefataflState
+    public Iterable<Piece> getPieces() {
+        return pieces;
+    }
+
+    // from interface HnefataflState
+    public int[] getMoves() {
+        return moves;
+    }
+
+    // from interface HnefataflState
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    // from interface HnefataflState
+    public void moveApplied(int delta) {
+        // keep the record current so that clients can catch up from it; the array
+        // is sent whole only when it grows
+        int ply = moveCount;
+        if (ply == moves.length) {
+            int[] grown = new int[Math.max(64, moves.length * 2)];
+            System.arraycopy(moves, 0, grown, 0, ply);
+            grown[ply] = delta;
+            setMoves(grown);
+        } else {
+            setMovesAt(delta, ply);
+        }
+        setMoveCount(ply + 1);
+        postMessage(MOVE_APPLIED, new Object[] { ply, delta });
+    }
+
+    /**
+     * Packs a move (see {@link HnefataflBoard#packMove}) and the capture
+     * bitmask it produced (see {@link HnefataflBoard#findCaptures}) into a
+     * single int.
+     */
+    public static int packDelta(int move, int captures) {
+        return move | (captures << 28);
+    }
+
+    /**
+     * Returns the move of a packed delta.
+     */
+    public static int getDeltaMove(int delta) {
+        return delta & 0x0FFFFFFF;
+    }
+
+    /**
+     * Returns the capture bitmask of a packed delta.
+     */
+    public static int getDeltaCaptures(int delta) {
+        return delta >>> 28;
+    }
+
     /**
      * Places the given piece on the board.
      */
@@ -137,6 +233,22 @@ public class HnefataflObject extends GameObject implements TurnGameObject {
         this.boardSize = value;
     }
 
+    /**
+     * Requests that the <code>variant</code> field be set to the
+     * specified value. The local value will be updated immediately and an
+     * event will be propagated through the system to notify all listeners
+     * that the attribute did change. Proxied copies of this object (on
+     * clients) will apply the value change when they received the
+     * attribute changed notification.
+     */
+    public void setVariant (String value)
+    {
+        String ovalue = this.variant;
+        requestAttributeChange(
+            VARIANT, value, ovalue);
+        this.variant = value;
+    }
+
     /**
      * Requests that the specified entry be added to the
      * <code>pieces</code> set. The set will not change until the event is
@@ -185,6 +297,55 @@ public class HnefataflObject extends GameObject implements TurnGameObject {
         this.pieces = clone;
     }
 
+    /**
+     * Requests that the <code>moves</code> field be set to the
+     * specified value. The local value will be updated immediately and an
+     * event will be propagated through the system to notify all listeners
+     * that the attribute did change. Proxied copies of this object (on
+     * clients) will apply the value change when they received the
+     * attribute changed notification.
+     */
+    public void setMoves (int[] value)
+    {
+        int[] ovalue = this.moves;
+        requestAttributeChange(
+            MOVES, value, ovalue);
+        this.moves = (value == null) ? null : value.clone();
+    }
+
+    /**
+     * Requests that the <code>index</code>th element of
+     * <code>moves</code> field be set to the specified value.
+     * The local value will be updated immediately and an event will be
+     * propagated through the system to notify all listeners that the
+     * attribute did change. Proxied copies of this object (on clients)
+     * will apply the value change when they received the attribute
+     * changed notification.
+     */
+    public void setMovesAt (int value, int index)
+    {
+        int ovalue = this.moves[index];
+        requestElementUpdate(
+            MOVES, index, Integer.valueOf(value), Integer.valueOf(ovalue));
+        this.moves[index] = value;
+    }
+
+    /**
+     * Requests that the <code>moveCount</code> field be set to the
+     * specified value. The local value will be updated immediately and an
+     * event will be propagated through the system to notify all listeners
+     * that the attribute did change. Proxied copies of this object (on
+     * clients) will apply the value change when they received the
+     * attribute changed notification.
+     */
+    public void setMoveCount (int value)
+    {
+        int ovalue = this.moveCount;
+        requestAttributeChange(
+            MOVE_COUNT, Integer.valueOf(value), Integer.valueOf(ovalue));
+        this.moveCount = value;
+    }
+
     /**
      * Requests that the <code>turnHolder</code> field be set to the
      * specified value. The local value will be updated immediately and an
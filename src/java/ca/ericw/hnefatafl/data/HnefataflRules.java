@@ -0,0 +1,120 @@
+package ca.ericw.hnefatafl.data;
+
+/**
+ * The capture and victory rules of one variant of the game. Rules objects are
+ * immutable and are shared by every board playing the variant. Each rule is
+ * compiled on construction into the square classification bits of
+ * {@link BoardGeometry}, so the board tests a rule with a single mask rather
+ * than by branching on it.
+ * <p>
+ * Whatever the rules, ordinary pieces may never stop on the throne or a
+ * corner, and black moves first.
+ */
+public class HnefataflRules {
+
+    /** The rules of the original variants: an armed King captured on four sides. */
+    public static final HnefataflRules STANDARD = new HnefataflRules(true, true, false, true, 4, false);
+
+    /**
+     * Creates a set of rules.
+     *
+     * @param kingArmed whether the King helps capture enemy pieces
+     * @param hostileCorners whether a corner helps capture a piece next to it
+     * @param hostileThrone whether the empty throne helps capture a piece next
+     * to it
+     * @param edgesCaptureKing whether the edge of the board counts as an
+     * attacker when the King stands against it
+     * @param kingSides the number of sides on which the King must be enclosed
+     * to be captured: four, or two to capture him like any other piece
+     * @param edgeEscape whether the King escapes by reaching any edge square
+     * rather than only a corner
+     */
+    public HnefataflRules(boolean kingArmed, boolean hostileCorners, boolean hostileThrone,
+                          boolean edgesCaptureKing, int kingSides, boolean edgeEscape) {
+        if (kingSides != 2 && kingSides != 4) {
+            throw new IllegalArgumentException("Unsupported King capture [sides=" + kingSides + "].");
+        }
+        _kingArmed = kingArmed;
+        _hostileCorners = hostileCorners;
+        _hostileThrone = hostileThrone;
+        _edgesCaptureKing = edgesCaptureKing;
+        _kingSides = kingSides;
+        _edgeEscape = edgeEscape;
+
+        _anvils = (hostileCorners ? BoardGeometry.CORNER : 0) | (hostileThrone ? BoardGeometry.THRONE : 0);
+        _escapes = edgeEscape ? BoardGeometry.EDGE : BoardGeometry.CORNER;
+        _standard = kingArmed && hostileCorners && !hostileThrone && edgesCaptureKing &&
+            kingSides == 4 && !edgeEscape;
+    }
+
+    /**
+     * Returns true if the King helps capture enemy pieces.
+     */
+    public boolean isKingArmed() {
+        return _kingArmed;
+    }
+
+    /**
+     * Returns true if a corner helps capture a piece next to it.
+     */
+    public boolean areCornersHostile() {
+        return _hostileCorners;
+    }
+
+    /**
+     * Returns true if the empty throne helps capture a piece next to it.
+     */
+    public boolean isThroneHostile() {
+        return _hostileThrone;
+    }
+
+    /**
+     * Returns true if the edge of the board counts as an attacker when the
+     * King stands against it.
+     */
+    public boolean doEdgesCaptureKing() {
+        return _edgesCaptureKing;
+    }
+
+    /**
+     * Returns the number of sides on which the King must be enclosed to be
+     * captured.
+     */
+    public int getKingSides() {
+        return _kingSides;
+    }
+
+    /**
+     * Returns true if the King escapes by reaching any edge square.
+     */
+    public boolean isEdgeEscape() {
+        return _edgeEscape;
+    }
+
+    /**
+     * Returns true if these rules are the same as {@link #STANDARD}.
+     */
+    public boolean isStandard() {
+        return _standard;
+    }
+
+    @Override
+    public String toString() {
+        return "[kingArmed=" + _kingArmed + ", hostileCorners=" + _hostileCorners +
+            ", hostileThrone=" + _hostileThrone + ", edgesCaptureKing=" + _edgesCaptureKing +
+            ", kingSides=" + _kingSides + ", edgeEscape=" + _edgeEscape + "]";
+    }
+
+    /** The rules as given. */
+    protected boolean _kingArmed, _hostileCorners, _hostileThrone, _edgesCaptureKing, _edgeEscape;
+    protected int _kingSides;
+
+    /** Classification bits of the empty squares that help capture a piece. */
+    protected int _anvils;
+
+    /** Classification bits of the squares on which the King escapes. */
+    protected int _escapes;
+
+    /** Whether these are the standard rules. */
+    protected boolean _standard;
+}
@@ -0,0 +1,64 @@
+package ca.ericw.hnefatafl.data;
+
+/**
+ * The game state on which {@link HnefataflMechanics} operates: the pieces as
+ * they were placed at the start of the game and the moves made since. On the live
+ * server and client this is the distributed {@link HnefataflObject}; tools
+ * that only need the rules, such as benchmarks and simulations, can use a
+ * {@link HeadlessHnefataflState} and avoid the event system entirely.
+ */
+public interface HnefataflState {
+
+    /**
+     * Returns the size of the board.
+     */
+    public int getBoardSize();
+
+    /**
+     * Sets the size of the board.
+     */
+    public void setBoardSize(int value);
+
+    /**
+     * Returns the name of the variant being played.
+     */
+    public String getVariant();
+
+    /**
+     * Sets the name of the variant being played.
+     */
+    public void setVariant(String value);
+
+    /**
+     * Returns the pieces placed on the board at the start of the game.
+     */
+    public Iterable<HnefataflObject.Piece> getPieces();
+
+    /**
+     * Assigns the given piece an id and places it on the board.
+     */
+    public void placePiece(HnefataflObject.Piece piece);
+
+    /**
+     * Returns the moves made since the pieces were placed, packed as by
+     * {@link HnefataflObject#packDelta}. Only the first
+     * {@link #getMoveCount} entries are in use.
+     */
+    public int[] getMoves();
+
+    /**
+     * Returns the number of moves made since the pieces were placed.
+     */
+    public int getMoveCount();
+
+    /**
+     * Records a move, packed as by {@link HnefataflObject#packDelta}.
+     */
+    public void moveApplied(int delta);
+
+    /**
+     * Returns the index of the player playing the given colour, or -1 if the
+     * colour is invalid.
+     */
+    public int getPlayerIdxOfColour(int colour);
+}
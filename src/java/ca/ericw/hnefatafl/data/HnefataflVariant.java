@@ -0,0 +1,77 @@
+package ca.ericw.hnefatafl.data;
+
+/**
+ * One variant of the game: its board size, the starting position of its
+ * pieces and its rules. Variants are defined in the variant file read by
+ * {@link HnefataflConfigurations} and are immutable once loaded.
+ */
+public class HnefataflVariant {
+
+    /**
+     * Creates a variant.
+     *
+     * @param config the board size and starting position, in the format
+     * described by {@link HnefataflConfigurations}
+     */
+    public HnefataflVariant(String name, int[] config, HnefataflRules rules) {
+        _name = name;
+        _config = config;
+        _rules = rules;
+    }
+
+    /**
+     * Returns the name by which the variant is chosen.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Returns the number of squares along each side of the board.
+     */
+    public int getSize() {
+        return _config[0];
+    }
+
+    /**
+     * Returns the board size and starting position in the format described
+     * by {@link HnefataflConfigurations}. The array is shared and must not be
+     * modified.
+     */
+    public int[] getConfiguration() {
+        return _config;
+    }
+
+    /**
+     * Returns the rules of the variant.
+     */
+    public HnefataflRules getRules() {
+        return _rules;
+    }
+
+    /**
+     * Creates a board playing by the rules of this variant with the pieces
+     * in their starting positions.
+     */
+    public HnefataflBoard createBoard() {
+        HnefataflBoard board = new HnefataflBoard(getSize(), _rules);
+        for (int i = 1; i < _config.length; i += 3) {
+            board.placePiece(board.getSquare(_config[i], _config[i+1]), _config[i+2], i == _config.length-3);
+        }
+        return board;
+    }
+
+    @Override
+    public String toString() {
+        return "[name=" + _name + ", size=" + getSize() + ", rules=" + _rules + "]";
+    }
+
+    /** The name of the variant. */
+    protected String _name;
+
+    /** The board size and starting position. */
+    protected int[] _config;
+
+    /** The rules of the variant. */
+    protected HnefataflRules _rules;
+}
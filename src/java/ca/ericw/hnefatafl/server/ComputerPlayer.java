@@ -0,0 +1,165 @@
+package ca.ericw.hnefatafl.server;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ca.ericw.hnefatafl.ai.MonteCarloSearch;
+import ca.ericw.hnefatafl.ai.OpeningBook;
+import ca.ericw.hnefatafl.ai.ParallelSearch;
+import ca.ericw.hnefatafl.ai.TranspositionTable;
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+
+import com.threerings.presents.server.PresentsServer;
+
+/**
+ * Plays one side of a game on behalf of the server. Searches run on a pool of
+ * threads shared by every computer player on the server, so the CPU spent
+ * thinking is bounded no matter how many tables have a computer player; each
+ * search is further bounded by the player's time budget.
+ * <p>
+ * Each search may enlist helper threads from a second shared pool to search
+ * in parallel (see {@link ParallelSearch}), up to the number of threads per
+ * game given by the <code>hnefatafl.ai_threads</code> system property.
+ * <p>
+ * A computer player given a playout budget chooses its moves by
+ * {@link MonteCarloSearch} instead, which suits the larger boards better;
+ * its playouts run on the same helper threads.
+ * <p>
+ * Positions found in the server's {@link OpeningBook} are answered from the
+ * book without searching.
+ */
+public class ComputerPlayer {
+
+    /** Notified on the distributed object thread when a move has been chosen. */
+    public interface MoveListener {
+        /**
+         * Called with the packed move chosen by the computer, or -1 if the
+         * computer has no move to make.
+         */
+        public void moveChosen(int move);
+    }
+
+    /**
+     * Creates a computer player for the given colour.
+     *
+     * @param budget time allowed to choose each move, in milliseconds
+     */
+    public ComputerPlayer(int colour, long budget) {
+        this(colour, budget, 0);
+    }
+
+    /**
+     * Creates a computer player for the given colour that searches by Monte
+     * Carlo tree search with the given number of playouts per move, or by
+     * alpha-beta search if the number is zero.
+     *
+     * @param budget time allowed to choose each move, in milliseconds
+     */
+    public ComputerPlayer(int colour, long budget, int playouts) {
+        _colour = colour;
+        _budget = budget;
+        _playouts = playouts;
+        if (playouts > 0) {
+            _mcts = new MonteCarloSearch(_helperPool, THREADS_PER_GAME);
+        } else {
+            _search = new ParallelSearch(_helperPool, THREADS_PER_GAME, new TranspositionTable(TABLE_BITS));
+        }
+    }
+
+    /**
+     * Returns the colour this computer player is playing.
+     */
+    public int getColour() {
+        return _colour;
+    }
+
+    /**
+     * Starts choosing a move on the given board. The board is copied before
+     * this method returns, so the caller may continue to modify it. The
+     * listener is notified on the distributed object thread, with -1 if the
+     * search fails.
+     */
+    public void requestMove(HnefataflBoard board, final MoveListener listener) {
+        final HnefataflBoard snapshot = new HnefataflBoard(board.getSize());
+        snapshot.copyFrom(board);
+
+        _searchPool.execute(new Runnable() {
+            public void run() {
+                int move = -1;
+                try {
+                    OpeningBook book = OpeningBook.getInstance();
+                    if (book != null) {
+                        move = book.probe(snapshot, _colour, _rand);
+                    }
+                    if (move == -1 && _mcts != null) {
+                        move = _mcts.findBestMove(snapshot, _colour, _playouts, _budget);
+                    } else if (move == -1) {
+                        move = _search.findBestMove(snapshot, _colour, _budget);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Computer player search failed [error=" + e + "].");
+                } finally {
+                    // always answer, even if the search died, so the game isn't left waiting
+                    final int chosen = move;
+                    PresentsServer.omgr.postRunnable(new Runnable() {
+                        public void run() {
+                            listener.moveChosen(chosen);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Colour this computer player is playing. */
+    protected int _colour;
+
+    /** Time allowed to choose each move, in milliseconds. */
+    protected long _budget;
+
+    /** Playouts per move, or zero to use alpha-beta search. */
+    protected int _playouts;
+
+    /** Our search, along with the table it keeps from one move to the next. */
+    protected ParallelSearch _search;
+
+    /** Our Monte Carlo search, if we have a playout budget. */
+    protected MonteCarloSearch _mcts;
+
+    /** Chooses among the book moves. */
+    protected Random _rand = new Random();
+
+    /**
+     * Creates a pool of low priority daemon threads with the given name.
+     */
+    protected static ExecutorService createPool(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /** Number of processors available to the server. */
+    protected static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    /** The most threads, helpers included, that one game's search may use. */
+    protected static final int THREADS_PER_GAME =
+        Math.max(1, Math.min(PROCESSORS, Integer.getInteger("hnefatafl.ai_threads", 2)));
+
+    /** Size of each computer player's transposition table, as a power of two. */
+    protected static final int TABLE_BITS = 16;
+
+    /** Runs the main search of every computer player on the server. */
+    protected static final ExecutorService _searchPool =
+        createPool(Math.max(1, PROCESSORS / 2), "ComputerPlayer");
+
+    /** Runs the helper searches of every computer player on the server. */
+    protected static final ExecutorService _helperPool =
+        createPool(Math.max(1, PROCESSORS / 2), "ComputerPlayerHelper");
+}
@@ -0,0 +1,118 @@
+package ca.ericw.hnefatafl.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import ca.ericw.hnefatafl.archive.GameRecordWriter;
+
+/**
+ * Appends the server's finished games to the game archive given by the
+ * <code>hnefatafl.archive</code> system property, in the format of
+ * {@link GameRecordWriter}.
+ * <p>
+ * Archiving a game only queues its record; a background thread writes the
+ * records and flushes the archive whenever the queue runs dry, so a slow disk
+ * never holds up the distributed object thread. Games end rarely enough that
+ * the queue is not bounded.
+ */
+public class GameArchive {
+
+    /**
+     * Returns the archive for this server, starting it on first use, or null
+     * if no archive is configured.
+     */
+    public static synchronized GameArchive getInstance() {
+        if (_instance == null) {
+            String path = System.getProperty("hnefatafl.archive");
+            if (path == null) {
+                return null;
+            }
+            _instance = new GameArchive(new File(path));
+        }
+        return _instance;
+    }
+
+    /**
+     * Creates an archive appending to the given file. The file is opened by
+     * the writer when the first game arrives.
+     */
+    public GameArchive(File file) {
+        _file = file;
+
+        Thread writer = new Thread("GameArchive") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Queues a finished game to be archived. The moves are copied, so the
+     * caller may go on to reuse its array.
+     *
+     * @param setup the name of the variant played
+     * @param winner the colour of the winner, or -1 for a draw
+     * @param moves the moves made, packed by
+     * {@link ca.ericw.hnefatafl.data.HnefataflBoard#packMove}
+     * @param count the number of moves made
+     */
+    public void gameEnded(String setup, int winner, int[] moves, int count) {
+        Record record = new Record();
+        record.setup = setup;
+        record.winner = winner;
+        record.moves = new int[count];
+        System.arraycopy(moves, 0, record.moves, 0, count);
+        _records.offer(record);
+    }
+
+    /**
+     * Writes records as they arrive until the server exits.
+     */
+    protected void writeLoop() {
+        while (true) {
+            Record record;
+            try {
+                record = _records.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            try {
+                if (_out == null) {
+                    _out = new GameRecordWriter(_file);
+                }
+                _out.writeGame(record.setup, record.winner, record.moves, record.moves.length);
+                if (_records.isEmpty()) {
+                    _out.flush();
+                }
+            } catch (IOException ioe) {
+                System.err.println("Unable to archive game [archive=" + _file +
+                                   ", setup=" + record.setup + ", error=" + ioe + "].");
+                _out = null;
+            }
+        }
+    }
+
+    /** A finished game awaiting the writer. */
+    protected static class Record {
+        public String setup;
+        public int winner;
+        public int[] moves;
+    }
+
+    /** The file to which games are appended. */
+    protected File _file;
+
+    /** The writer, once the archive has been opened. Used only by the writer thread. */
+    protected GameRecordWriter _out;
+
+    /** Finished games awaiting the writer. */
+    protected BlockingQueue<Record> _records = new LinkedBlockingQueue<Record>();
+
+    /** The server's archive, once started. */
+    protected static GameArchive _instance;
+}
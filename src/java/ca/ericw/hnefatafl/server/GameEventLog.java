@@ -0,0 +1,380 @@
+package ca.ericw.hnefatafl.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * Logs the events of the server's games (starts, accepted and rejected
+ * moves, players disconnected for abuse, and ends) as JSON lines, one object
+ * per event.
+ * <p>
+ * Logging an event only places it in a fixed size lock-free ring buffer; a
+ * background thread formats and writes the events. If the buffer is full the
+ * event is dropped and counted rather than waiting for room, so a flood of
+ * illegal moves can never hold up a game. The writer notes how many events
+ * were dropped once it catches up.
+ * <p>
+ * Events are written to the file given by the <code>hnefatafl.eventlog</code>
+ * system property, which is rotated once it grows past
+ * <code>hnefatafl.eventlog.max_bytes</code> (64MB by default), keeping
+ * {@link #KEEP_FILES} old files. Nothing is logged if the property is
+ * unset.
+ */
+public class GameEventLog {
+
+    /**
+     * Returns the event log for this server, starting it on first use, or
+     * null if no event log is configured.
+     */
+    public static synchronized GameEventLog getInstance() {
+        if (_instance == null) {
+            String path = System.getProperty("hnefatafl.eventlog");
+            if (path == null) {
+                return null;
+            }
+            long maxBytes = Long.getLong("hnefatafl.eventlog.max_bytes", DEFAULT_MAX_BYTES);
+            _instance = new GameEventLog(new File(path), maxBytes);
+        }
+        return _instance;
+    }
+
+    /**
+     * Creates an event log writing to the given file, rotating it when it
+     * grows past the given size.
+     */
+    public GameEventLog(File file, long maxBytes) {
+        _file = file;
+        _maxBytes = maxBytes;
+
+        Thread writer = new Thread("GameEventLog") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Logs the start of a game, or its resumption after the given number of
+     * moves.
+     */
+    public void gameStarted(int gameId, String variant, int size, int ply) {
+        Event event = new Event(GAME_STARTED, gameId);
+        event.variant = variant;
+        event.size = size;
+        event.ply = ply;
+        post(event);
+    }
+
+    /**
+     * Logs a move made in a game.
+     *
+     * @param ply the number of moves made in the game before this one
+     * @param delta the move and its captures, packed by
+     * {@link HnefataflObject#packDelta}
+     */
+    public void moveAccepted(int gameId, String who, int ply, int size, int delta) {
+        Event event = new Event(MOVE_ACCEPTED, gameId);
+        event.who = who;
+        event.ply = ply;
+        event.size = size;
+        event.move = delta;
+        post(event);
+    }
+
+    /**
+     * Logs a move refused for the given reason, one of those of
+     * {@link ServerMetrics}.
+     */
+    public void moveRejected(int gameId, String who, String reason,
+                             int fromRow, int fromCol, int toRow, int toCol) {
+        Event event = new Event(MOVE_REJECTED, gameId);
+        event.who = who;
+        event.reason = reason;
+        event.squares = new int[] { fromRow, fromCol, toRow, toCol };
+        post(event);
+    }
+
+    /**
+     * Logs a player disconnected from a game for abusing the move service.
+     */
+    public void playerDisconnected(int gameId, String who) {
+        Event event = new Event(PLAYER_DISCONNECTED, gameId);
+        event.who = who;
+        post(event);
+    }
+
+    /**
+     * Logs the end of a game.
+     *
+     * @param winner the colour of the winner, or -1 for a draw
+     */
+    public void gameEnded(int gameId, String variant, int winner, int ply) {
+        Event event = new Event(GAME_ENDED, gameId);
+        event.variant = variant;
+        event.winner = winner;
+        event.ply = ply;
+        post(event);
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * Places an event in the ring buffer, or drops it if the buffer is full.
+     */
+    protected void post(Event event) {
+        event.time = System.currentTimeMillis();
+        while (true) {
+            long seq = _tail.get();
+            if (seq - _head >= BUFFER_SIZE) {
+                _dropped.incrementAndGet();
+                return;
+            }
+            if (_tail.compareAndSet(seq, seq + 1)) {
+                // the slot is ours; the writer waits for it to be filled
+                _events.lazySet((int)(seq & (BUFFER_SIZE - 1)), event);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes events as they arrive until the server exits, flushing whenever
+     * the buffer runs dry.
+     */
+    protected void writeLoop() {
+        StringBuilder buf = new StringBuilder();
+        long reported = 0;
+        while (true) {
+            int slot = (int)(_head & (BUFFER_SIZE - 1));
+            Event event = _events.get(slot);
+            if (event == null) {
+                // nothing to write, or a slot claimed but not yet filled
+                long dropped = _dropped.get();
+                if (dropped != reported) {
+                    buf.setLength(0);
+                    buf.append("{\"time\":").append(System.currentTimeMillis());
+                    buf.append(",\"event\":\"dropped\",\"count\":").append(dropped - reported).append("}\n");
+                    write(buf);
+                    reported = dropped;
+                }
+                flush();
+                LockSupport.parkNanos(IDLE_WAIT);
+                continue;
+            }
+            _events.set(slot, null);
+            _head++;
+
+            buf.setLength(0);
+            format(event, buf);
+            write(buf);
+        }
+    }
+
+    /**
+     * Formats an event as a line of JSON.
+     */
+    protected void format(Event event, StringBuilder buf) {
+        buf.append("{\"time\":").append(event.time);
+        buf.append(",\"event\":\"").append(EVENT_NAMES[event.type]).append('"');
+        buf.append(",\"game\":").append(event.gameId);
+        switch (event.type) {
+        case GAME_STARTED:
+            appendString(buf.append(",\"variant\":"), event.variant);
+            buf.append(",\"size\":").append(event.size);
+            buf.append(",\"ply\":").append(event.ply);
+            break;
+
+        case MOVE_ACCEPTED:
+            int move = HnefataflObject.getDeltaMove(event.move);
+            int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+            appendString(buf.append(",\"who\":"), event.who);
+            buf.append(",\"ply\":").append(event.ply);
+            buf.append(",\"from\":[").append(from / event.size).append(',').append(from % event.size);
+            buf.append("],\"to\":[").append(to / event.size).append(',').append(to % event.size);
+            buf.append("],\"captures\":").append(Integer.bitCount(HnefataflObject.getDeltaCaptures(event.move)));
+            break;
+
+        case MOVE_REJECTED:
+            appendString(buf.append(",\"who\":"), event.who);
+            appendString(buf.append(",\"reason\":"), event.reason);
+            buf.append(",\"from\":[").append(event.squares[0]).append(',').append(event.squares[1]);
+            buf.append("],\"to\":[").append(event.squares[2]).append(',').append(event.squares[3]);
+            buf.append(']');
+            break;
+
+        case PLAYER_DISCONNECTED:
+            appendString(buf.append(",\"who\":"), event.who);
+            break;
+
+        case GAME_ENDED:
+            appendString(buf.append(",\"variant\":"), event.variant);
+            buf.append(",\"winner\":");
+            buf.append((event.winner == -1) ? "null" : (event.winner == 0) ? "\"black\"" : "\"white\"");
+            buf.append(",\"ply\":").append(event.ply);
+            break;
+        }
+        buf.append("}\n");
+    }
+
+    /**
+     * Appends a string as a JSON string literal.
+     */
+    protected static void appendString(StringBuilder buf, String value) {
+        if (value == null) {
+            buf.append("null");
+            return;
+        }
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int)c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Writes a formatted line, rotating the log first if it has grown too
+     * large. Failures are reported and the line is lost.
+     */
+    protected void write(CharSequence line) {
+        try {
+            if (_out == null) {
+                open();
+            } else if (_written >= _maxBytes) {
+                _out.close();
+                rotate();
+                open();
+            }
+            _out.append(line);
+            _written += line.length();
+        } catch (IOException ioe) {
+            System.err.println("Unable to write game event log [file=" + _file +
+                               ", error=" + ioe + "].");
+            _out = null;
+        }
+    }
+
+    /**
+     * Sends everything written so far on its way.
+     */
+    protected void flush() {
+        if (_out != null) {
+            try {
+                _out.flush();
+            } catch (IOException ioe) {
+                System.err.println("Unable to flush game event log [file=" + _file +
+                                   ", error=" + ioe + "].");
+                _out = null;
+            }
+        }
+    }
+
+    /**
+     * Opens the log for appending.
+     */
+    protected void open() throws IOException {
+        _out = new BufferedWriter(new FileWriter(_file, true));
+        _written = _file.length();
+    }
+
+    /**
+     * Shifts the old logs along, discarding the oldest, and moves the
+     * current one into first place.
+     */
+    protected void rotate() {
+        new File(_file.getPath() + "." + KEEP_FILES).delete();
+        for (int i = KEEP_FILES - 1; i >= 1; i--) {
+            new File(_file.getPath() + "." + i).renameTo(new File(_file.getPath() + "." + (i + 1)));
+        }
+        _file.renameTo(new File(_file.getPath() + ".1"));
+    }
+
+    /** A logged event awaiting the writer. */
+    protected static class Event {
+        public int type;
+        public int gameId;
+        public long time;
+        public String variant;
+        public String who;
+        public String reason;
+        public int size;
+        public int ply;
+        public int move;
+        public int winner;
+        public int[] squares;
+
+        public Event(int type, int gameId) {
+            this.type = type;
+            this.gameId = gameId;
+        }
+    }
+
+    /** The ring buffer of events awaiting the writer. */
+    protected AtomicReferenceArray<Event> _events = new AtomicReferenceArray<Event>(BUFFER_SIZE);
+
+    /** The sequence number of the next slot to be claimed by a logger. */
+    protected AtomicLong _tail = new AtomicLong();
+
+    /** The sequence number of the next slot to be written. Advanced only by the writer. */
+    protected volatile long _head;
+
+    /** The number of events dropped because the buffer was full. */
+    protected AtomicLong _dropped = new AtomicLong();
+
+    /** The log file. */
+    protected File _file;
+
+    /** The size past which the log file is rotated. */
+    protected long _maxBytes;
+
+    /** The open log, and roughly how many bytes it holds. Used only by the writer. */
+    protected Writer _out;
+    protected long _written;
+
+    /** The server's event log, once started. */
+    protected static GameEventLog _instance;
+
+    /** Event types, and their names in the log. */
+    protected static final int GAME_STARTED = 0;
+    protected static final int MOVE_ACCEPTED = 1;
+    protected static final int MOVE_REJECTED = 2;
+    protected static final int GAME_ENDED = 3;
+    protected static final int PLAYER_DISCONNECTED = 4;
+    protected static final String[] EVENT_NAMES = {
+        "game_started", "move_accepted", "move_rejected", "game_ended", "player_disconnected" };
+
+    /** Events the buffer holds; a power of two. */
+    protected static final int BUFFER_SIZE = 1 << 14;
+
+    /** Nanoseconds the writer waits for more events when the buffer is empty. */
+    protected static final long IDLE_WAIT = 10 * 1000 * 1000L;
+
+    /** Default size past which the log file is rotated. */
+    protected static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024L;
+
+    /** Number of rotated log files kept. */
+    protected static final int KEEP_FILES = 5;
+}
@@ -0,0 +1,82 @@
+package ca.ericw.hnefatafl.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the rules evaluation of the server's games on a fixed set of shard
+ * threads, so that one busy table's move validation and capture finding do
+ * not hold up every other table on the distributed object thread.
+ * <p>
+ * Each game is assigned to one shard by its id, and a shard runs its tasks
+ * one at a time in the order they were given, so the tasks of a game never
+ * run concurrently and always see the effects of those before them. Tasks
+ * must not touch distributed objects; they hand their results back to the
+ * distributed object thread instead.
+ * <p>
+ * The number of shards is given by the <code>hnefatafl.shards</code> system
+ * property; games are evaluated on the distributed object thread as before
+ * if it is unset.
+ */
+public class GameShards {
+
+    /**
+     * Returns the shards for this server, creating them on first use, or
+     * null if sharding is not configured.
+     */
+    public static synchronized GameShards getInstance() {
+        int shards = Integer.getInteger("hnefatafl.shards", 0);
+        if (_instance == null && shards > 0) {
+            _instance = new GameShards(shards);
+        }
+        return _instance;
+    }
+
+    /**
+     * Creates the given number of shards, each with its own thread.
+     */
+    public GameShards(int shards) {
+        _shards = new ExecutorService[shards];
+        for (int i = 0; i < shards; i++) {
+            final String name = "GameShard-" + i;
+            _shards[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    /**
+     * Runs a task for the given game on the game's shard, after any of its
+     * tasks already given.
+     */
+    public void execute(int gameId, final Runnable task) {
+        _shards[(gameId & Integer.MAX_VALUE) % _shards.length].execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    // keep the shard's thread for the other games
+                    System.err.println("Game shard task failed [task=" + task + ", error=" + e + "].");
+                }
+            }
+        });
+    }
+
+    /** The shard executors. */
+    protected ExecutorService[] _shards;
+
+    /** The server's shards, once created. */
+    protected static GameShards _instance;
+}
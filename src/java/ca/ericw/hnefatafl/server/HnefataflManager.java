@@ -1,5 +1,6 @@
 package ca.ericw.hnefatafl.server;
 
+import ca.ericw.hnefatafl.data.HnefataflBoard;
 import ca.ericw.hnefatafl.data.HnefataflConfigurations;
 import ca.ericw.hnefatafl.data.HnefataflMechanics;
 import ca.ericw.hnefatafl.data.HnefataflObject;
@@ -7,6 +8,12 @@ import ca.ericw.hnefatafl.data.HnefataflObject;
 import com.threerings.crowd.data.BodyObject;
 import com.threerings.crowd.data.PlaceObject;
 
+import com.threerings.presents.server.PresentsClient;
+import com.threerings.presents.server.PresentsServer;
+
+import com.threerings.util.Name;
+
+import com.threerings.parlor.game.data.GameAI;
 import com.threerings.parlor.game.server.GameManager;
 import com.threerings.parlor.turn.server.TurnGameManager;
 import com.threerings.parlor.turn.server.TurnGameManagerDelegate;
@@ -27,10 +34,21 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
     
     @Override // from PlaceManager
     public void didInit() {
-        super.didInit();
-
         // get a casted reference to our game configuration
         _gameconf = (ToyBoxGameConfig)_config;
+
+        // the computer takes the seat opposite the game creator if asked to and nobody
+        // else sat there; it must be seated before the game manager counts the players
+        Boolean computer = (Boolean)_gameconf.params.get("computeropponent");
+        Name[] players = _gameconf.players;
+        if (computer != null && computer && players.length > 0 && players[0] != null &&
+            (players.length < 2 || players[1] == null)) {
+            _computerIdx = 1;
+            _gameconf.players = new Name[] { players[0], new Name(COMPUTER_NAME) };
+            _gameconf.ais = new GameAI[] { null, new GameAI(0, 0) };
+        }
+
+        super.didInit();
     }
 
     @Override // from PlaceManager
@@ -48,6 +66,19 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
     public void didShutdown() {
         super.didShutdown();
 
+        // a game abandoned part way through is no longer in play, is not to be
+        // recovered, and its spectators are told it ended without a winner
+        if (_activeVariant != null) {
+            _metrics.gameEnded(_activeVariant);
+            _activeVariant = null;
+            if (_journal != null) {
+                _journal.gameEnded(_journalId, -1);
+            }
+            if (_relay != null) {
+                _relay.gameEnded(_gameobj.getOid(), -1);
+            }
+        }
+
         // null out the two critical references
         _gameobj = null;
         _logic = null;
@@ -67,14 +98,82 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
         String boardConfig = (String)_gameconf.params.get("boardsetup");
         
         _gameobj.setGameCreatorIsBlack(creatorIsBlack);
-        _logic.setupGame(HnefataflConfigurations.getConfiguration(boardConfig));
+        _logic.setupGame(HnefataflConfigurations.getVariant(boardConfig));
+        _ply = 0;
+        _forfeitIdx = -1;
+        _setup = boardConfig;
+        if (_activeVariant == null) {
+            _activeVariant = _gameobj.variant;
+            _metrics.gameStarted(_activeVariant);
+        }
+        
+        // pick up where we left off if these players were mid-game when the server went down
+        _journal = MoveJournal.getInstance();
+        if (_journal != null) {
+            long players = MoveJournal.hashPlayers(_gameobj.players);
+            MoveJournal.RecoveredGame recovered =
+                _journal.claimRecovered(players, boardConfig, creatorIsBlack);
+            if (recovered != null && !resumeGame(recovered)) {
+                System.err.println("Abandoning unplayable journalled game [game=" + recovered.gameId +
+                                   ", moves=" + recovered.moves.length + "].");
+                _journal.gameEnded(recovered.gameId, -1);
+                recovered = null;
+            }
+            if (recovered == null) {
+                _journalId = _journal.gameStarted(players, boardConfig, creatorIsBlack);
+            }
+        }
+        
+        // let spectators outside the room follow along
+        _relay = SpectatorRelay.getInstance();
+        if (_relay != null) {
+            _relay.gameStarted(_gameobj.getOid(), _gameobj.variant, _gameobj.moves, _gameobj.moveCount);
+        }
+        if (_events != null) {
+            _events.gameStarted(_gameobj.getOid(), _gameobj.variant, _gameobj.boardSize, _ply);
+        }
+        
+        // busy servers evaluate the rules of each game on its shard, on a board of its own
+        _shards = GameShards.getInstance();
+        if (_shards != null) {
+            _shardBoard = new HnefataflBoard(_gameobj.boardSize);
+            _shardBoard.copyFrom(_logic.getBoard());
+            _shardStartPly = _ply;
+        }
+        
+        // set up the computer player if it took a seat
+        if (_computerIdx != -1) {
+            Integer thinkTime = (Integer)_gameconf.params.get("aithinktime");
+            long budget = (thinkTime != null ? thinkTime : DEFAULT_THINK_TIME) * 1000L;
+            // playouts are configured in thousands; none means search by alpha-beta
+            Integer playouts = (Integer)_gameconf.params.get("aiplayouts");
+            _computer = new ComputerPlayer(_gameobj.getColourOfPlayer(_computerIdx), budget,
+                                           (playouts != null ? playouts : 0) * 1000);
+        }
     }
 
     @Override // from GameManager
     protected void gameDidEnd() {
         super.gameDidEnd();
 
-        // nothing to do, and, err, nothing good that rhymes with do
+        if (_activeVariant != null) {
+            _metrics.gameEnded(_activeVariant);
+            _activeVariant = null;
+        }
+
+        if (_journal != null) {
+            _journal.gameEnded(_journalId, getWinningPlayer());
+        }
+        if (_relay != null) {
+            _relay.gameEnded(_gameobj.getOid(), _gameobj.getColourOfPlayer(getWinningPlayer()));
+        }
+        if (_events != null) {
+            _events.gameEnded(_gameobj.getOid(), _gameobj.variant,
+                              _gameobj.getColourOfPlayer(getWinningPlayer()), _ply);
+        }
+        if (_archive != null) {
+            _archive.gameEnded(_setup, _gameobj.getColourOfPlayer(getWinningPlayer()), _moves, _ply);
+        }
     }
     
     // from interface TurnGameManager
@@ -84,11 +183,21 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
 
     // from interface TurnGameManager
     public void turnDidStart () {
-        int turnHolderColour = _gameobj.getColourOfPlayer(_turndel.getTurnHolderIndex());
+        // the mobility is kept up to date as moves are made, so this costs nothing
+        int mobility = _logic.getMobility(_gameobj.getColourOfPlayer(_turndel.getTurnHolderIndex()));
+        _metrics.recordMobility(mobility);
         
         // if the current player has no valid moves, the game is over
-        if (!_logic.hasValidMoves(turnHolderColour)) {
+        if (mobility == 0) {
             endGame();
+            
+        } else if (_turndel.getTurnHolderIndex() == _computerIdx) {
+            // let the computer think about its move
+            _computer.requestMove(_logic.getBoard(), new ComputerPlayer.MoveListener() {
+                public void moveChosen(int move) {
+                    computerMoved(move);
+                }
+            });
         }
     }
 
@@ -109,36 +218,326 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
      * @param destination new position of the piece
      */
     public void movePiece(BodyObject player, HnefataflObject.Piece piece,
-                                             HnefataflObject.BoardLocation destination) {       
-        // make sure it's the turn of the player moving the piece
+                          HnefataflObject.BoardLocation destination) {
+        // turn away players asking too often before spending anything on them
+        switch (_limiter.requestMade(player.getOid())) {
+        case MoveRateLimiter.THROTTLE:
+            _metrics.moveRejected(ServerMetrics.THROTTLED);
+            return;
+        case MoveRateLimiter.DISCONNECT:
+            disconnect(player);
+            return;
+        }
+        
+        // make sure it's the turn of the player moving the piece, and not the computer's
         int pidx = _turndel.getTurnHolderIndex();
-        if (_playerOids[pidx] != player.getOid()) {
-            System.err.println("Requested to move piece by non-turn holder " +
-                               "[who=" + player.who() +
-                               ", turnHolder=" + _gameobj.turnHolder + "].");
+        if (pidx == _computerIdx || _playerOids[pidx] != player.getOid()) {
+            rejectMove(player, ServerMetrics.NOT_TURN_HOLDER, piece, destination);
+            return;
+        }
+        
+        // make sure the move makes sense before looking at the board
+        int size = _gameobj.boardSize;
+        if (piece == null || destination == null ||
+            piece.row < 0 || piece.row >= size || piece.col < 0 || piece.col >= size ||
+            destination.row < 0 || destination.row >= size ||
+            destination.col < 0 || destination.col >= size ||
+            (piece.row != destination.row) == (piece.col != destination.col))
+        {
+            rejectMove(player, ServerMetrics.MALFORMED_MOVE, piece, destination);
+            return;
+        }
+        
+        if (_shards != null) {
+            // the piece's identity is known only here; the board is left to the shard
+            if (!_logic.isPieceAt(piece)) {
+                rejectMove(player, ServerMetrics.ILLEGAL_MOVE, piece, destination);
+            } else {
+                shardMove(player, HnefataflBoard.packMove(piece.row * size + piece.col,
+                                                          destination.row * size + destination.col),
+                          piece, destination);
+            }
             return;
         }
         
         // make sure this is a legal move
-        if (!_logic.isValidMove(piece, destination)) {
-            System.err.println("Received illegal move request " +
-                               "[who=" + player.who() +
-                               ", piece=" + piece + ", dest=" + destination + "].");
+        long start = System.nanoTime();
+        boolean valid = _logic.isValidMove(piece, destination);
+        _metrics.recordValidation(System.nanoTime() - start);
+        if (!valid) {
+            rejectMove(player, ServerMetrics.ILLEGAL_MOVE, piece, destination);
             return;
         }
         
         // everything's OK, actually carry out the move
+        applyMove(player.who(), piece, destination);
+    }
+    
+    /**
+     * Checks a move on the game's shard and, if it is legal, makes it on the
+     * shard's board, then hands the move and its captures back here to be
+     * applied to the game. The shard makes moves only at the ply at which
+     * they were requested, so of two requests for one turn only the first is
+     * made; the second is dropped as stale rather than rejected, since a
+     * double click on a slow connection is no abuse.
+     *
+     * @param player the player making the move, or null for the computer
+     * @param move the move, packed by {@link HnefataflBoard#packMove}
+     * @param piece the piece moved, for reporting a rejected player's move
+     * @param destination its destination, likewise
+     */
+    protected void shardMove(final BodyObject player, final int move, final HnefataflObject.Piece piece,
+                             final HnefataflObject.BoardLocation destination) {
+        final HnefataflBoard board = _shardBoard;
+        final int ply = _ply, shardPly = _ply - _shardStartPly;
+        _shards.execute(_gameobj.getOid(), new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+                int delta;
+                if (board.getMoveCount() != shardPly) {
+                    delta = STALE_MOVE;
+                } else if (board.isValidMove(from, to)) {
+                    delta = HnefataflObject.packDelta(move, board.makeMove(move));
+                } else {
+                    delta = ILLEGAL_MOVE;
+                }
+                _metrics.recordValidation(System.nanoTime() - start);
+                
+                final int result = delta;
+                PresentsServer.omgr.postRunnable(new Runnable() {
+                    public void run() {
+                        if (result == STALE_MOVE || !isCurrent(ply)) {
+                            return;
+                        } else if (result != ILLEGAL_MOVE) {
+                            applyDelta((player == null) ? COMPUTER_NAME : player.who(), result);
+                        } else if (player == null) {
+                            computerRejected(move);
+                        } else {
+                            rejectMove(player, ServerMetrics.ILLEGAL_MOVE, piece, destination);
+                        }
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Notes a player's move rejected for the given reason, disconnecting the
+     * player if they have made too many bad requests.
+     */
+    protected void rejectMove(BodyObject player, String reason, HnefataflObject.Piece piece,
+                              HnefataflObject.BoardLocation destination) {
+        _metrics.moveRejected(reason);
+        if (_events != null) {
+            _events.moveRejected(_gameobj.getOid(), player.who(), reason,
+                                 (piece == null) ? -1 : piece.row, (piece == null) ? -1 : piece.col,
+                                 (destination == null) ? -1 : destination.row,
+                                 (destination == null) ? -1 : destination.col);
+        }
+        if (_limiter.requestRejected(player.getOid())) {
+            disconnect(player);
+        }
+    }
+    
+    /**
+     * Ends the session of a player who has abused the move service.
+     */
+    protected void disconnect(BodyObject player) {
+        _metrics.playerDisconnected();
+        if (_events != null) {
+            _events.playerDisconnected(_gameobj.getOid(), player.who());
+        }
+        _limiter.forget(player.getOid());
+        PresentsClient client = PresentsServer.clmgr.getClient(player.username);
+        if (client != null) {
+            client.endSession();
+        }
+    }
+    
+    /**
+     * Returns true if the game is still in play and no move has been made
+     * since the given ply; used to discard the results of shard work that
+     * have been overtaken by events.
+     */
+    protected boolean isCurrent(int ply) {
+        return _gameobj != null && _gameobj.isInPlay() && _ply == ply;
+    }
+    
+    /**
+     * Invoked on the distributed object thread when the computer player has
+     * chosen its move.
+     */
+    protected void computerMoved(int move) {
+        // the game may have ended or been shut down while the computer was thinking
+        if (_gameobj == null || !_gameobj.isInPlay() ||
+            _turndel.getTurnHolderIndex() != _computerIdx) {
+            return;
+        }
+        
+        // the computer forfeits rather than leave the game stuck on its turn
+        if (move == -1) {
+            _metrics.computerFailed();
+            forfeit(_computerIdx);
+            return;
+        }
+        
+        if (_shards != null) {
+            shardMove(null, move, null, null);
+            return;
+        }
+        
+        int size = _gameobj.boardSize;
+        int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+        HnefataflObject.Piece piece = _logic.getPieceAt(from / size, from % size);
+        HnefataflObject.BoardLocation destination =
+            new HnefataflObject.BoardLocation(to / size, to % size);
+        
+        if (piece == null || !_logic.isValidMove(piece, destination)) {
+            computerRejected(move);
+            return;
+        }
+        
+        applyMove(COMPUTER_NAME, piece, destination);
+    }
+    
+    /**
+     * Notes that the computer chose an illegal move, and has it forfeit the
+     * game.
+     */
+    protected void computerRejected(int move) {
+        int size = _gameobj.boardSize;
+        int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+        _metrics.moveRejected(ServerMetrics.COMPUTER_ILLEGAL_MOVE);
+        if (_events != null) {
+            _events.moveRejected(_gameobj.getOid(), COMPUTER_NAME, ServerMetrics.COMPUTER_ILLEGAL_MOVE,
+                                 from / size, from % size, to / size, to % size);
+        }
+        _metrics.computerFailed();
+        forfeit(_computerIdx);
+    }
+    
+    /**
+     * Ends the game with the given player having lost.
+     */
+    protected void forfeit(int pidx) {
+        _forfeitIdx = pidx;
+        endGame();
+    }
+    
+    /**
+     * Returns the index of the player who won the game, or -1 if nobody has
+     * or it was drawn.
+     */
+    protected int getWinningPlayer() {
+        return (_forfeitIdx != -1) ? 1 - _forfeitIdx : _logic.getWinningPlayer();
+    }
+    
+    /**
+     * Carries out a validated move, reports the changes to the players, and
+     * ends the current turn.
+     *
+     * @param who name of the player making the move, for the event log
+     */
+    protected void applyMove(String who, HnefataflObject.Piece piece,
+                             HnefataflObject.BoardLocation destination) {
         try {
             _gameobj.startTransaction();
             _logic.movePiece(piece, destination);
         } finally {
+            long start = System.nanoTime();
+            _gameobj.commitTransaction();
+            _metrics.recordCommit(System.nanoTime() - start);
+        }
+        moveApplied(who, _gameobj.moves[_gameobj.moveCount - 1]);
+    }
+    
+    /**
+     * Carries out a move already made on the game's shard, whose captures
+     * were found there, reports the changes to the players, and ends the
+     * current turn.
+     *
+     * @param who name of the player making the move, for the event log
+     * @param delta the move and its captures, packed by {@link HnefataflObject#packDelta}
+     */
+    protected void applyDelta(String who, int delta) {
+        try {
+            _gameobj.startTransaction();
+            _logic.applyMove(delta, null);
+            _gameobj.moveApplied(delta);
+        } finally {
+            long start = System.nanoTime();
             _gameobj.commitTransaction();
+            _metrics.recordCommit(System.nanoTime() - start);
         }
+        moveApplied(who, delta);
+    }
+    
+    /**
+     * Records a move just applied to the game and ends the current turn.
+     */
+    protected void moveApplied(String who, int delta) {
+        _metrics.moveApplied();
+        
+        int move = HnefataflObject.getDeltaMove(delta);
+        if (_journal != null) {
+            _journal.moveApplied(_journalId, _ply, move);
+        }
+        if (_relay != null) {
+            _relay.moveApplied(_gameobj.getOid(), _ply, delta);
+        }
+        if (_events != null) {
+            _events.moveAccepted(_gameobj.getOid(), who, _ply, _gameobj.boardSize, delta);
+        }
+        recordMove(move);
         
         // end the current turn
         _turndel.endTurn();
     }
     
+    /**
+     * Replays the moves of a game recovered from the move journal, so that
+     * the game carries on from where it was interrupted. The moves are first
+     * checked on a board of their own, from black's first move on; returns
+     * false, having changed nothing, if any of them is not a legal move.
+     */
+    protected boolean resumeGame(MoveJournal.RecoveredGame recovered) {
+        HnefataflBoard board = new HnefataflBoard(_gameobj.boardSize);
+        board.copyFrom(_logic.getBoard());
+        int colour = HnefataflObject.BLACK, squares = _gameobj.boardSize * _gameobj.boardSize;
+        for (int move : recovered.moves) {
+            int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+            if (from >= squares || to >= squares || board.getWinner() != -1 ||
+                board.getColourAt(from) != colour || !board.isValidMove(from, to)) {
+                return false;
+            }
+            board.applyMove(from, to);
+            colour = _logic.getOpposingColour(colour);
+        }
+
+        int size = _gameobj.boardSize;
+        for (int move : recovered.moves) {
+            int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+            _logic.movePiece(_logic.getPieceAt(from / size, from % size),
+                             new HnefataflObject.BoardLocation(to / size, to % size));
+            recordMove(move);
+        }
+        _journalId = recovered.gameId;
+        return true;
+    }
+    
+    /**
+     * Adds a move to the list of moves played in this game.
+     */
+    protected void recordMove(int move) {
+        if (_ply == _moves.length) {
+            int[] moves = new int[_moves.length * 2];
+            System.arraycopy(_moves, 0, moves, 0, _ply);
+            _moves = moves;
+        }
+        _moves[_ply++] = move;
+    }
+    
     /**
      * Returns a new turn game manager delegate to handle turn transitions.
      */
@@ -146,9 +545,13 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
         return new TurnGameManagerDelegate(this) {
             protected void setFirstTurnHolder() {
                 _turnIdx = _logic.getFirstTurnHolderIndex();
+                if (_ply % 2 == 1) {
+                    // a resumed game in which black has just moved
+                    _turnIdx = _logic.getNextTurnHolderIndex(_turnIdx);
+                }
             }
             protected void setNextTurnHolder() {
-                _logic.updateState();
+                // the mechanics already applied the last move to its board
                 _turnIdx = _logic.getNextTurnHolderIndex(_turnIdx);
             }
         };
@@ -158,8 +561,8 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
     protected void assignWinners (boolean[] winners) {
         super.assignWinners(winners);
         
-        // ask the game logic who won; -1 indicates a draw
-        int winner = _logic.getWinningPlayer();
+        // ask the game logic who won, unless somebody forfeited; -1 indicates a draw
+        int winner = getWinningPlayer();
        
         winners[0] = (winner == 0 || winner == -1);
         winners[1] = (winner == 1 || winner == -1);
@@ -177,4 +580,69 @@ public class HnefataflManager extends GameManager implements TurnGameManager {
     /** Handles our game logic. */
     protected HnefataflMechanics _logic;
     
+    /** The computer player, or null if both seats are played by people. */
+    protected ComputerPlayer _computer;
+    
+    /** Index of the player seat taken by the computer, or -1 if none. */
+    protected int _computerIdx = -1;
+    
+    /** Index of the player who forfeited the game, or -1 if none did. */
+    protected int _forfeitIdx = -1;
+    
+    /** Journal of the moves in this game, or null if journalling is unavailable. */
+    protected MoveJournal _journal;
+    
+    /** Id of this game in the move journal. */
+    protected int _journalId;
+    
+    /** Relay of this game's moves to spectators, or null if relaying is unavailable. */
+    protected SpectatorRelay _relay;
+    
+    /** Shards on which this game's rules are evaluated, or null to evaluate them here. */
+    protected GameShards _shards;
+    
+    /** Copy of the board used only on this game's shard. */
+    protected HnefataflBoard _shardBoard;
+    
+    /** The number of moves made in the game when its shard's board was copied. */
+    protected int _shardStartPly;
+    
+    /** The server's metrics. */
+    protected ServerMetrics _metrics = ServerMetrics.getInstance();
+    
+    /** The server's game event log, or null if events are not logged. */
+    protected GameEventLog _events = GameEventLog.getInstance();
+    
+    /** The server's game archive, or null if games are not archived. */
+    protected GameArchive _archive = GameArchive.getInstance();
+    
+    /** Limits the rate of players' move requests. */
+    protected MoveRateLimiter _limiter = MoveRateLimiter.getInstance();
+    
+    /** Variant this game is counted against in the metrics while in play, or null. */
+    protected String _activeVariant;
+    
+    /** Name of the board configuration this game was set up from. */
+    protected String _setup;
+    
+    /** Moves played so far in this game, packed as by {@link HnefataflBoard#packMove}. */
+    protected int[] _moves = new int[64];
+    
+    /** Number of moves played so far in this game. */
+    protected int _ply;
+    
+    /** Results from the shard of a move that was not made. */
+    protected static final int ILLEGAL_MOVE = -1;
+    protected static final int STALE_MOVE = -2;
+    
+    /** Name under which the computer player's moves are logged. */
+    protected static final String COMPUTER_NAME = "computer";
+    
+    /** Time, in seconds, the computer player takes per move if not configured. */
+    protected static final int DEFAULT_THINK_TIME = 2;
+    
+    static {
+        // recover the journal while the first tables are being set up, rather than in a game's start
+        MoveJournal.open();
+    }
 }
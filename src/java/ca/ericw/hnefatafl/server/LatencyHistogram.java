@@ -0,0 +1,108 @@
+package ca.ericw.hnefatafl.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies, in nanoseconds, in log-linear buckets in the manner of an
+ * HDR histogram: each power of two is split into {@link #SUB_BUCKETS} equal
+ * buckets, so any latency is known to within about six percent while the
+ * whole range of a long fits in under a thousand counters. Recording is a
+ * couple of atomic increments and never blocks, so it may be done from any
+ * thread on every move. Other non-negative quantities may be counted the
+ * same way.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Records one latency.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        _counts.incrementAndGet(getBucket(nanos));
+        _count.incrementAndGet();
+        _total.addAndGet(nanos);
+        for (long max = _max.get(); nanos > max && !_max.compareAndSet(max, nanos); max = _max.get()) {
+            // another thread raised the maximum; try again against theirs
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     */
+    public long getCount() {
+        return _count.get();
+    }
+
+    /**
+     * Returns the sum of the latencies recorded, in nanoseconds.
+     */
+    public long getTotal() {
+        return _total.get();
+    }
+
+    /**
+     * Returns the longest latency recorded, in nanoseconds.
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * Returns the latency, in nanoseconds, below which the given fraction of
+     * the recorded latencies fall, or zero if none have been recorded. The
+     * result is the upper bound of the bucket holding that latency.
+     */
+    public long getPercentile(double fraction) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(fraction * count)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    /**
+     * Returns the bucket holding the given latency.
+     */
+    protected static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int)nanos;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int)(nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest latency held by the given bucket.
+     */
+    protected static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1, sub = bucket % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /** The number of latencies recorded in each bucket. */
+    protected AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+    /** The number, sum and maximum of the latencies recorded. */
+    protected AtomicLong _count = new AtomicLong(), _total = new AtomicLong(), _max = new AtomicLong();
+
+    /** Each power of two is split into two to this power buckets. */
+    protected static final int SUB_BITS = 4;
+    protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Enough buckets for every non-negative long. */
+    protected static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+}
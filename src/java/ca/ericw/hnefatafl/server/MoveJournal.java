@@ -0,0 +1,442 @@
+package ca.ericw.hnefatafl.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.ericw.hnefatafl.data.HeadlessHnefataflState;
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+import ca.ericw.hnefatafl.data.HnefataflMechanics;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+import ca.ericw.hnefatafl.data.HnefataflVariant;
+
+import com.threerings.util.Name;
+
+/**
+ * An append-only journal of every game in progress on the server, kept in a
+ * memory-mapped file so that games survive the server process dying.
+ * <p>
+ * Each game is journalled as a start record naming its players, a setup
+ * record naming its board configuration, one record per accepted move and an
+ * end record. Configurations are named by a hash of the name rather than by
+ * their place in {@link HnefataflConfigurations}, so that a game is never
+ * recovered onto a different board if the variants change while the server
+ * is down; a game whose configuration is no longer loaded is dropped. Records are a fixed {@link #RECORD_SIZE} bytes and appending
+ * one is just a write to the mapped buffer. A single background thread forces
+ * the buffer to disk every {@link #FLUSH_INTERVAL} milliseconds when anything
+ * has been written, so all of the tables on the server share one disk flush;
+ * at most that much play can be lost in a crash.
+ * <p>
+ * When the journal is opened, the games that were started but never ended
+ * are replayed into a {@link HnefataflMechanics} to check them, and are held
+ * until the same players sit down to the same board again (see
+ * {@link #claimRecovered}). The file is then rewritten to hold only those
+ * games.
+ */
+public class MoveJournal {
+
+    /** A game recovered from the journal. */
+    public static class RecoveredGame {
+        /** Journal id of the game. */
+        public int gameId;
+
+        /** Hash of the names of the players, in seat order. */
+        public long players;
+
+        /** Name of the board configuration. */
+        public String setup;
+
+        /** Whether the game creator plays black. */
+        public boolean creatorIsBlack;
+
+        /** Moves played so far, packed as by {@link HnefataflBoard#packMove}. */
+        public int[] moves;
+    }
+
+    /**
+     * Starts opening the server's journal, at the path given by the
+     * <code>hnefatafl.journal</code> system property, on a thread of its
+     * own, so that recovering and compacting it holds up nothing else. Does
+     * nothing if the property is unset or the journal is already open or
+     * opening. Called when the server loads the game; may be called earlier
+     * from the server's own startup.
+     */
+    public static synchronized void open() {
+        final String path = System.getProperty("hnefatafl.journal");
+        if (path == null || _opening) {
+            return;
+        }
+        _opening = true;
+
+        Thread opener = new Thread("MoveJournalOpener") {
+            public void run() {
+                File file = new File(path);
+                try {
+                    MoveJournal journal = new MoveJournal(file);
+                    synchronized (MoveJournal.class) {
+                        _instance = journal;
+                    }
+                } catch (IOException ioe) {
+                    System.err.println("Unable to open move journal " +
+                                       "[file=" + file + ", error=" + ioe + "].");
+                }
+            }
+        };
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    /**
+     * Returns the journal for this server, or null if journalling is not
+     * configured, the journal could not be opened, or it is still being
+     * opened; games started while there is no journal are not journalled.
+     */
+    public static synchronized MoveJournal getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Returns a hash identifying the given players, in seat order.
+     */
+    public static long hashPlayers(Name[] players) {
+        long hash = 1125899906842597L;
+        for (Name player : players) {
+            String name = (player == null) ? "" : player.toString();
+            for (int i = 0; i < name.length(); i++) {
+                hash = 31 * hash + name.charAt(i);
+            }
+            hash = 31 * hash + 0xFF;
+        }
+        return hash;
+    }
+
+    /**
+     * Opens the journal in the given file, recovering any unfinished games in
+     * it and starting the background flush thread.
+     */
+    public MoveJournal(File file) throws IOException {
+        _file = file;
+        if (file.exists()) {
+            recover();
+        }
+        compact();
+
+        Thread flusher = new Thread("MoveJournal") {
+            public void run() {
+                flushLoop();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Removes and returns the unfinished game recovered from the journal for
+     * the given players and setup, or returns null if there is none.
+     */
+    public synchronized RecoveredGame claimRecovered(long players, String setup, boolean creatorIsBlack) {
+        for (Iterator<RecoveredGame> it = _recovered.values().iterator(); it.hasNext(); ) {
+            RecoveredGame game = it.next();
+            if (game.players == players && game.setup.equals(setup) &&
+                game.creatorIsBlack == creatorIsBlack) {
+                it.remove();
+                return game;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Journals the start of a new game and returns its journal id.
+     */
+    public synchronized int gameStarted(long players, String setup, boolean creatorIsBlack) {
+        int gameId = _nextGameId++;
+        append(gameId, START, creatorIsBlack ? 1 : 0, 0, players);
+        append(gameId, SETUP, 0, 0, hashSetup(setup));
+        return gameId;
+    }
+
+    /**
+     * Journals a move accepted in the given game.
+     *
+     * @param ply the number of moves played in the game before this one
+     */
+    public synchronized void moveApplied(int gameId, int ply, int move) {
+        append(gameId, MOVE, 0, ply, move);
+    }
+
+    /**
+     * Journals the end of the given game, after which it will not be
+     * recovered.
+     */
+    public synchronized void gameEnded(int gameId, int winner) {
+        append(gameId, END, 0, 0, winner);
+    }
+
+    /**
+     * Writes a record at the end of the journal, growing the file if needed.
+     */
+    protected void append(int gameId, int type, int flags, int aux, long value) {
+        try {
+            if (_buffer.remaining() < RECORD_SIZE) {
+                map(_buffer.capacity() + GROWTH);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to grow move journal " +
+                               "[file=" + _file + ", error=" + ioe + "].");
+            return;
+        }
+        _buffer.putInt(gameId);
+        _buffer.put((byte)type);
+        _buffer.put((byte)flags);
+        _buffer.putShort((short)aux);
+        _buffer.putLong(value);
+        _dirty = true;
+    }
+
+    /**
+     * Maps the first given number of bytes of the journal file, keeping the
+     * current write position.
+     */
+    protected void map(int size) throws IOException {
+        int position = (_buffer == null) ? 0 : _buffer.position();
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        try {
+            _buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+        _buffer.position(position);
+    }
+
+    /**
+     * Forces the journal to disk whenever it has been written, until the
+     * server exits.
+     */
+    protected void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                if (!_dirty) {
+                    continue;
+                }
+                _dirty = false;
+                buffer = _buffer;
+            }
+            // writes may carry on into the buffer while it is forced
+            buffer.force();
+        }
+    }
+
+    /**
+     * Reads the journal and collects every game with no end record, keeping
+     * only the moves that replay legally from the start of the game.
+     */
+    protected void recover() throws IOException {
+        Map<Integer, RecoveredGame> games = new LinkedHashMap<Integer, RecoveredGame>();
+        Map<Integer, List<Integer>> moves = new LinkedHashMap<Integer, List<Integer>>();
+
+        ByteBuffer records = readFile();
+        while (records.remaining() >= RECORD_SIZE) {
+            int gameId = records.getInt();
+            int type = records.get();
+            int flags = records.get();
+            int aux = records.getShort();
+            long value = records.getLong();
+            if (type == 0) {
+                // the unwritten tail of the file
+                break;
+            }
+            _nextGameId = Math.max(_nextGameId, gameId + 1);
+
+            if (type == START) {
+                RecoveredGame game = new RecoveredGame();
+                game.gameId = gameId;
+                game.players = value;
+                game.creatorIsBlack = (flags & 1) != 0;
+                games.put(gameId, game);
+                moves.put(gameId, new ArrayList<Integer>());
+            } else if (type == SETUP && games.containsKey(gameId) && games.get(gameId).setup == null) {
+                games.get(gameId).setup = getSetup(value);
+            } else if (type == MOVE && moves.containsKey(gameId) && moves.get(gameId).size() == aux) {
+                moves.get(gameId).add((int)value);
+            } else if (type == END) {
+                games.remove(gameId);
+                moves.remove(gameId);
+            }
+        }
+
+        for (RecoveredGame game : games.values()) {
+            if (game.setup == null) {
+                System.err.println("Dropping journalled game of unknown setup [game=" + game.gameId + "].");
+                continue;
+            }
+            game.moves = replay(game.setup, moves.get(game.gameId));
+            if (game.moves != null) {
+                _recovered.put(game.gameId, game);
+            }
+        }
+    }
+
+    /**
+     * Replays the given moves from the start of the given setup and returns
+     * the longest legal prefix of them, or null if the game turns out to have
+     * been won already.
+     */
+    protected int[] replay(String setup, List<Integer> moves) {
+        HnefataflVariant variant = HnefataflConfigurations.getVariant(setup);
+        int size = variant.getSize();
+        HnefataflMechanics logic = new HnefataflMechanics(new HeadlessHnefataflState());
+        logic.setupGame(variant);
+
+        int played = 0;
+        for (int move : moves) {
+            int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+            HnefataflObject.Piece piece = logic.getPieceAt(from / size, from % size);
+            HnefataflObject.BoardLocation dest = new HnefataflObject.BoardLocation(to / size, to % size);
+            int colour = (played % 2 == 0) ? HnefataflObject.BLACK : HnefataflObject.WHITE;
+            if (piece == null || piece.colour != colour || !logic.isValidMove(piece, dest)) {
+                System.err.println("Dropping illegal journalled move " +
+                                   "[setup=" + setup + ", ply=" + played + "].");
+                break;
+            }
+            logic.movePiece(piece, dest);
+            played++;
+            if (logic.getWinningPlayer() != -1) {
+                return null;
+            }
+        }
+
+        int[] legal = new int[played];
+        for (int i = 0; i < played; i++) {
+            legal[i] = moves.get(i);
+        }
+        return legal;
+    }
+
+    /**
+     * Rewrites the journal so it holds only the recovered games, and maps it
+     * for appending.
+     */
+    protected void compact() throws IOException {
+        File tmp = new File(_file.getPath() + ".tmp");
+        tmp.delete();
+        File journal = _file;
+        _file = tmp;
+        try {
+            map(GROWTH);
+            for (RecoveredGame game : _recovered.values()) {
+                append(game.gameId, START, game.creatorIsBlack ? 1 : 0, 0, game.players);
+                append(game.gameId, SETUP, 0, 0, hashSetup(game.setup));
+                for (int ply = 0; ply < game.moves.length; ply++) {
+                    append(game.gameId, MOVE, 0, ply, game.moves[ply]);
+                }
+            }
+            _buffer.force();
+        } finally {
+            _file = journal;
+        }
+
+        if (!tmp.renameTo(journal)) {
+            // some platforms will not rename over an existing file
+            journal.delete();
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("Unable to replace journal with " + tmp);
+            }
+        }
+        _dirty = false;
+    }
+
+    /**
+     * Reads the entire journal file into a buffer.
+     */
+    protected ByteBuffer readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(_file, "r");
+        try {
+            ByteBuffer records = ByteBuffer.allocate((int)raf.length());
+            FileChannel channel = raf.getChannel();
+            while (records.hasRemaining() && channel.read(records) != -1) {
+                // keep reading
+            }
+            records.flip();
+            return records;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the hash by which the given setup is journalled.
+     */
+    protected static long hashSetup(String setup) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < setup.length(); i++) {
+            hash = 31 * hash + setup.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the loaded configuration journalled with the given hash, or
+     * null if there is none.
+     */
+    protected static String getSetup(long hash) {
+        for (String setup : HnefataflConfigurations.getConfigurationNames()) {
+            if (hashSetup(setup) == hash) {
+                return setup;
+            }
+        }
+        return null;
+    }
+
+    /** The file holding the journal. */
+    protected File _file;
+
+    /** Mapping of the journal file; its position is where the next record goes. */
+    protected MappedByteBuffer _buffer;
+
+    /** Whether records have been written since the last flush. */
+    protected boolean _dirty;
+
+    /** Id to give the next game started. */
+    protected int _nextGameId = 1;
+
+    /** Unfinished games recovered from the journal and not yet claimed, by id. */
+    protected Map<Integer, RecoveredGame> _recovered = new LinkedHashMap<Integer, RecoveredGame>();
+
+    /** The server's journal, once opened. */
+    protected static MoveJournal _instance;
+
+    /** Whether the journal has been opened or is being opened. */
+    protected static boolean _opening;
+
+    /** Record types. */
+    protected static final int START = 1;
+    protected static final int MOVE = 2;
+    protected static final int END = 3;
+    protected static final int SETUP = 4;
+
+    /** Size of each record, in bytes. */
+    protected static final int RECORD_SIZE = 16;
+
+    /** Bytes by which the journal file grows when full. */
+    protected static final int GROWTH = RECORD_SIZE * 65536;
+
+    /** Milliseconds between flushes of the journal to disk. */
+    protected static final long FLUSH_INTERVAL = 50L;
+}
@@ -0,0 +1,168 @@
+package ca.ericw.hnefatafl.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Limits the rate at which each player may ask to move pieces, so that a
+ * hostile client spamming move requests costs the server next to nothing.
+ * <p>
+ * Each player, identified by the oid of their body object, has a bucket of
+ * tokens that refills at a steady rate up to a small burst; each request
+ * takes a token and is throttled if there are none. Throttled and rejected
+ * requests count as strikes against the player, which wear off as the bucket
+ * refills; a player who piles up too many strikes should be disconnected.
+ * <p>
+ * The limits are given by the <code>hnefatafl.move_rate</code> (requests
+ * per second), <code>hnefatafl.move_burst</code> and
+ * <code>hnefatafl.move_strikes</code> system properties. The limiter is
+ * shared by every table and must be used only on the distributed object
+ * thread.
+ */
+public class MoveRateLimiter {
+
+    /** Verdicts on a request. */
+    public static final int ALLOW = 0;
+    public static final int THROTTLE = 1;
+    public static final int DISCONNECT = 2;
+
+    /**
+     * Returns the limiter for this server, creating it on first use.
+     */
+    public static synchronized MoveRateLimiter getInstance() {
+        if (_instance == null) {
+            double rate = DEFAULT_RATE;
+            try {
+                rate = Double.parseDouble(System.getProperty("hnefatafl.move_rate", "" + DEFAULT_RATE));
+            } catch (NumberFormatException nfe) {
+                System.err.println("Ignoring bad move rate [rate=" +
+                                   System.getProperty("hnefatafl.move_rate") + "].");
+            }
+            _instance = new MoveRateLimiter(rate,
+                Integer.getInteger("hnefatafl.move_burst", DEFAULT_BURST),
+                Integer.getInteger("hnefatafl.move_strikes", DEFAULT_STRIKES));
+        }
+        return _instance;
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param rate requests per second allowed in the long run
+     * @param burst requests allowed at once after a quiet spell
+     * @param strikes strikes after which a player should be disconnected
+     */
+    public MoveRateLimiter(double rate, int burst, int strikes) {
+        _rate = rate;
+        _burst = burst;
+        _maxStrikes = strikes;
+    }
+
+    /**
+     * Takes a token for a request from the given player, and returns whether
+     * the request should be carried out ({@link #ALLOW}), ignored
+     * ({@link #THROTTLE}), or the player disconnected ({@link #DISCONNECT}).
+     */
+    public int requestMade(int oid) {
+        long now = System.currentTimeMillis();
+        if (++_requests % SWEEP_INTERVAL == 0) {
+            sweep(now);
+        }
+
+        Bucket bucket = _buckets.get(oid);
+        if (bucket == null) {
+            _buckets.put(oid, bucket = new Bucket());
+            bucket.tokens = _burst;
+            bucket.updated = now;
+        }
+        refill(bucket, now);
+
+        if (bucket.tokens >= 1) {
+            bucket.tokens -= 1;
+            return ALLOW;
+        }
+        bucket.strikes += 1;
+        return (bucket.strikes >= _maxStrikes) ? DISCONNECT : THROTTLE;
+    }
+
+    /**
+     * Counts a strike against a player whose request was allowed through
+     * but then rejected as malformed or illegal. Returns true if the player
+     * should now be disconnected.
+     */
+    public boolean requestRejected(int oid) {
+        Bucket bucket = _buckets.get(oid);
+        if (bucket == null) {
+            return false;
+        }
+        bucket.strikes += 1;
+        return bucket.strikes >= _maxStrikes;
+    }
+
+    /**
+     * Forgets everything known about a player, as when they are disconnected.
+     */
+    public void forget(int oid) {
+        _buckets.remove(oid);
+    }
+
+    /**
+     * Tops up a bucket for the time since it was last updated, wearing off
+     * strikes at the same rate.
+     */
+    protected void refill(Bucket bucket, long now) {
+        double earned = (now - bucket.updated) * _rate / 1000.0;
+        bucket.updated = now;
+        bucket.tokens = Math.min(_burst, bucket.tokens + earned);
+        bucket.strikes = Math.max(0, bucket.strikes - earned);
+    }
+
+    /**
+     * Drops the buckets of players who have been quiet long enough that
+     * their buckets would be full and their strikes gone.
+     */
+    protected void sweep(long now) {
+        for (Iterator<Map.Entry<Integer, Bucket>> it = _buckets.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue().updated > IDLE_TIME) {
+                it.remove();
+            }
+        }
+    }
+
+    /** A player's tokens and strikes. */
+    protected static class Bucket {
+        public double tokens;
+        public double strikes;
+        public long updated;
+    }
+
+    /** Buckets by player oid. */
+    protected Map<Integer, Bucket> _buckets = new HashMap<Integer, Bucket>();
+
+    /** Requests per second allowed in the long run. */
+    protected double _rate;
+
+    /** Requests allowed at once after a quiet spell. */
+    protected int _burst;
+
+    /** Strikes after which a player should be disconnected. */
+    protected int _maxStrikes;
+
+    /** Requests seen, for timing the sweeps. */
+    protected long _requests;
+
+    /** The server's limiter, once created. */
+    protected static MoveRateLimiter _instance;
+
+    /** Default limits. */
+    protected static final double DEFAULT_RATE = 5.0;
+    protected static final int DEFAULT_BURST = 10;
+    protected static final int DEFAULT_STRIKES = 100;
+
+    /** Requests between sweeps of idle buckets. */
+    protected static final int SWEEP_INTERVAL = 1024;
+
+    /** Milliseconds after which a quiet player's bucket is dropped. */
+    protected static final long IDLE_TIME = 5 * 60 * 1000L;
+}
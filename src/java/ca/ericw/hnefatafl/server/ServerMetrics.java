@@ -0,0 +1,395 @@
+package ca.ericw.hnefatafl.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+/**
+ * Keeps the server's counts of moves and games and the latencies of handling
+ * moves. Every update is a few atomic operations, so the metrics may be
+ * updated from any thread on every move without holding anything up.
+ * <p>
+ * The metrics are published over JMX under {@link #OBJECT_NAME} and, if the
+ * <code>hnefatafl.metrics.file</code> system property is set, written to
+ * that file in the Prometheus text format every {@link #DUMP_INTERVAL}
+ * milliseconds, where a node exporter may collect them.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /** The name under which the metrics are published over JMX. */
+    public static final String OBJECT_NAME = "ca.ericw.hnefatafl:type=ServerMetrics";
+
+    /** Reasons for which a move is rejected. */
+    public static final String NOT_TURN_HOLDER = "not_turn_holder";
+    public static final String ILLEGAL_MOVE = "illegal_move";
+    public static final String COMPUTER_ILLEGAL_MOVE = "computer_illegal_move";
+    public static final String MALFORMED_MOVE = "malformed_move";
+    public static final String THROTTLED = "throttled";
+
+    /**
+     * Returns the metrics for this server, publishing them on first use.
+     */
+    public static synchronized ServerMetrics getInstance() {
+        if (_instance == null) {
+            _instance = new ServerMetrics();
+            _instance.publish();
+        }
+        return _instance;
+    }
+
+    /**
+     * Records the time taken to decide whether a move is legal.
+     */
+    public void recordValidation(long nanos) {
+        _validation.record(nanos);
+    }
+
+    /**
+     * Records the time taken to commit the transaction carrying a move's
+     * changes to the game object.
+     */
+    public void recordCommit(long nanos) {
+        _commit.record(nanos);
+    }
+
+    /**
+     * Records the number of moves open to the player whose turn is starting.
+     */
+    public void recordMobility(int moves) {
+        _mobility.record(moves);
+    }
+
+    /**
+     * Counts a move applied to a game.
+     */
+    public void moveApplied() {
+        _moves.incrementAndGet();
+
+        // count the move against the current second, reclaiming its slot if it's stale
+        long second = System.currentTimeMillis() / 1000L;
+        int slot = (int)(second % RATE_WINDOW);
+        long stamp = _rateStamps.get(slot);
+        if (stamp != second && _rateStamps.compareAndSet(slot, stamp, second)) {
+            _rateCounts.set(slot, 0);
+        }
+        _rateCounts.incrementAndGet(slot);
+    }
+
+    /**
+     * Counts a move rejected for the given reason.
+     */
+    public void moveRejected(String reason) {
+        getCounter(_rejected, reason).incrementAndGet();
+    }
+
+    /**
+     * Counts a search by a computer player that failed to produce a legal move.
+     */
+    public void computerFailed() {
+        _computerFailures.incrementAndGet();
+    }
+
+    /**
+     * Counts a player disconnected for abusing the move service.
+     */
+    public void playerDisconnected() {
+        _disconnects.incrementAndGet();
+    }
+
+    /**
+     * Counts a game of the given variant that has started.
+     */
+    public void gameStarted(String variant) {
+        getGauge(_games, variant).incrementAndGet();
+    }
+
+    /**
+     * Counts a game of the given variant that has ended or been abandoned.
+     */
+    public void gameEnded(String variant) {
+        getGauge(_games, variant).decrementAndGet();
+    }
+
+    /**
+     * Returns the histogram of move validation times.
+     */
+    public LatencyHistogram getValidationLatency() {
+        return _validation;
+    }
+
+    /**
+     * Returns the histogram of move transaction commit times.
+     */
+    public LatencyHistogram getCommitLatency() {
+        return _commit;
+    }
+
+    /**
+     * Returns the histogram of the moves open to each player at the start of
+     * their turn.
+     */
+    public LatencyHistogram getMobility() {
+        return _mobility;
+    }
+
+    // from interface ServerMetricsMBean
+    public long getMovesApplied() {
+        return _moves.get();
+    }
+
+    // from interface ServerMetricsMBean
+    public double getMovesPerSecond() {
+        // average over the full seconds in the window, leaving out the one under way
+        long second = System.currentTimeMillis() / 1000L, moves = 0;
+        for (int i = 0; i < RATE_WINDOW; i++) {
+            long stamp = _rateStamps.get(i);
+            if (stamp < second && stamp >= second - (RATE_WINDOW - 1)) {
+                moves += _rateCounts.get(i);
+            }
+        }
+        return moves / (double)(RATE_WINDOW - 1);
+    }
+
+    // from interface ServerMetricsMBean
+    public long getComputerFailures() {
+        return _computerFailures.get();
+    }
+
+    // from interface ServerMetricsMBean
+    public long getPlayersDisconnected() {
+        return _disconnects.get();
+    }
+
+    // from interface ServerMetricsMBean
+    public long getMovesRejected() {
+        long rejected = 0;
+        for (AtomicLong count : _rejected.values()) {
+            rejected += count.get();
+        }
+        return rejected;
+    }
+
+    // from interface ServerMetricsMBean
+    public int getActiveGames() {
+        int games = 0;
+        for (AtomicInteger count : _games.values()) {
+            games += count.get();
+        }
+        return games;
+    }
+
+    // from interface ServerMetricsMBean
+    public long getValidationMedianMicros() {
+        return _validation.getPercentile(0.5) / 1000L;
+    }
+
+    // from interface ServerMetricsMBean
+    public long getValidation99thMicros() {
+        return _validation.getPercentile(0.99) / 1000L;
+    }
+
+    // from interface ServerMetricsMBean
+    public long getCommitMedianMicros() {
+        return _commit.getPercentile(0.5) / 1000L;
+    }
+
+    // from interface ServerMetricsMBean
+    public long getCommit99thMicros() {
+        return _commit.getPercentile(0.99) / 1000L;
+    }
+
+    // from interface ServerMetricsMBean
+    public long getMedianMobility() {
+        return _mobility.getPercentile(0.5);
+    }
+
+    // from interface ServerMetricsMBean
+    public String dump() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("# HELP hnefatafl_moves_total Moves applied.\n");
+        buf.append("# TYPE hnefatafl_moves_total counter\n");
+        buf.append("hnefatafl_moves_total ").append(_moves.get()).append('\n');
+
+        buf.append("# HELP hnefatafl_moves_per_second Moves applied per second, recently.\n");
+        buf.append("# TYPE hnefatafl_moves_per_second gauge\n");
+        buf.append("hnefatafl_moves_per_second ").append(getMovesPerSecond()).append('\n');
+
+        buf.append("# HELP hnefatafl_moves_rejected_total Moves rejected, by reason.\n");
+        buf.append("# TYPE hnefatafl_moves_rejected_total counter\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(_rejected).entrySet()) {
+            buf.append("hnefatafl_moves_rejected_total{reason=\"").append(entry.getKey()).append("\"} ");
+            buf.append(entry.getValue().get()).append('\n');
+        }
+
+        buf.append("# HELP hnefatafl_computer_failures_total Computer searches that produced no legal move.\n");
+        buf.append("# TYPE hnefatafl_computer_failures_total counter\n");
+        buf.append("hnefatafl_computer_failures_total ").append(_computerFailures.get()).append('\n');
+
+        buf.append("# HELP hnefatafl_players_disconnected_total Players disconnected for abusing the move service.\n");
+        buf.append("# TYPE hnefatafl_players_disconnected_total counter\n");
+        buf.append("hnefatafl_players_disconnected_total ").append(_disconnects.get()).append('\n');
+
+        buf.append("# HELP hnefatafl_active_games Games in play, by variant.\n");
+        buf.append("# TYPE hnefatafl_active_games gauge\n");
+        for (Map.Entry<String, AtomicInteger> entry : new TreeMap<String, AtomicInteger>(_games).entrySet()) {
+            buf.append("hnefatafl_active_games{variant=\"").append(entry.getKey()).append("\"} ");
+            buf.append(entry.getValue().get()).append('\n');
+        }
+
+        dumpSummary(buf, "hnefatafl_move_validation_seconds", "Time taken to validate a move.",
+                    _validation, 1e9);
+        dumpSummary(buf, "hnefatafl_move_commit_seconds", "Time taken to commit a move's transaction.",
+                    _commit, 1e9);
+        dumpSummary(buf, "hnefatafl_turn_mobility", "Moves open to the player whose turn it is.",
+                    _mobility, 1);
+        return buf.toString();
+    }
+
+    /**
+     * Appends a histogram to a dump as a Prometheus summary, dividing its
+     * values by the given scale.
+     */
+    protected static void dumpSummary(StringBuilder buf, String name, String help,
+                                      LatencyHistogram hist, double scale) {
+        buf.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        buf.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            buf.append(name).append("{quantile=\"").append(quantile).append("\"} ");
+            buf.append(hist.getPercentile(quantile) / scale).append('\n');
+        }
+        buf.append(name).append("_sum ").append(hist.getTotal() / scale).append('\n');
+        buf.append(name).append("_count ").append(hist.getCount()).append('\n');
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and starts
+     * writing them to the metrics file, if there is one.
+     */
+    protected void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.err.println("Unable to publish server metrics over JMX [error=" + e + "].");
+        }
+
+        final String path = System.getProperty("hnefatafl.metrics.file");
+        if (path != null) {
+            Thread dumper = new Thread("ServerMetrics") {
+                public void run() {
+                    dumpLoop(new File(path));
+                }
+            };
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+    }
+
+    /**
+     * Rewrites the metrics file every {@link #DUMP_INTERVAL} milliseconds
+     * until the server exits. Each dump is written aside and renamed into
+     * place so that readers never see half of one.
+     */
+    protected void dumpLoop(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        while (true) {
+            try {
+                Writer out = new FileWriter(temp);
+                try {
+                    out.write(dump());
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    file.delete();
+                    temp.renameTo(file);
+                }
+            } catch (IOException ioe) {
+                System.err.println("Unable to write server metrics [file=" + file +
+                                   ", error=" + ioe + "].");
+            }
+            try {
+                Thread.sleep(DUMP_INTERVAL);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the counter for the given key, creating it if need be.
+     */
+    protected static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the gauge for the given key, creating it if need be.
+     */
+    protected static AtomicInteger getGauge(ConcurrentMap<String, AtomicInteger> gauges, String key) {
+        AtomicInteger gauge = gauges.get(key);
+        if (gauge == null) {
+            AtomicInteger created = new AtomicInteger();
+            gauge = gauges.putIfAbsent(key, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    /** Moves applied since the server started. */
+    protected AtomicLong _moves = new AtomicLong();
+
+    /** Moves applied in each of the last few seconds, and the second each slot counts. */
+    protected AtomicLongArray _rateCounts = new AtomicLongArray(RATE_WINDOW);
+    protected AtomicLongArray _rateStamps = new AtomicLongArray(RATE_WINDOW);
+
+    /** Computer searches that produced no legal move. */
+    protected AtomicLong _computerFailures = new AtomicLong();
+
+    /** Players disconnected for abusing the move service. */
+    protected AtomicLong _disconnects = new AtomicLong();
+
+    /** Moves rejected, by reason. */
+    protected ConcurrentMap<String, AtomicLong> _rejected = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Games in play, by variant. */
+    protected ConcurrentMap<String, AtomicInteger> _games = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /** Latencies of validating moves and of committing their transactions. */
+    protected LatencyHistogram _validation = new LatencyHistogram(), _commit = new LatencyHistogram();
+
+    /** Moves open to each player at the start of their turn; counts rather than nanoseconds. */
+    protected LatencyHistogram _mobility = new LatencyHistogram();
+
+    /** The server's metrics, once created. */
+    protected static ServerMetrics _instance;
+
+    /** Seconds over which the move rate is measured, including the one under way. */
+    protected static final int RATE_WINDOW = 11;
+
+    /** Quantiles reported for each latency. */
+    protected static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /** Milliseconds between writes of the metrics file. */
+    protected static final long DUMP_INTERVAL = 10 * 1000L;
+}
@@ -0,0 +1,44 @@
+package ca.ericw.hnefatafl.server;
+
+/**
+ * The management interface through which {@link ServerMetrics} is published
+ * over JMX. Latencies are in microseconds.
+ */
+public interface ServerMetricsMBean {
+
+    /** Returns the number of moves applied since the server started. */
+    public long getMovesApplied();
+
+    /** Returns the moves applied per second over the last few seconds. */
+    public double getMovesPerSecond();
+
+    /** Returns the number of moves rejected, for any reason. */
+    public long getMovesRejected();
+
+    /** Returns the number of computer searches that produced no legal move. */
+    public long getComputerFailures();
+
+    /** Returns the number of players disconnected for abusing the move service. */
+    public long getPlayersDisconnected();
+
+    /** Returns the number of games in play. */
+    public int getActiveGames();
+
+    /** Returns the median time taken to validate a move. */
+    public long getValidationMedianMicros();
+
+    /** Returns the 99th percentile time taken to validate a move. */
+    public long getValidation99thMicros();
+
+    /** Returns the median time taken to commit a move's transaction. */
+    public long getCommitMedianMicros();
+
+    /** Returns the 99th percentile time taken to commit a move's transaction. */
+    public long getCommit99thMicros();
+
+    /** Returns the median number of moves open to a player at the start of their turn. */
+    public long getMedianMobility();
+
+    /** Returns every metric in the Prometheus text format. */
+    public String dump();
+}
@@ -0,0 +1,514 @@
+package ca.ericw.hnefatafl.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * Relays the moves of the games on the server to spectators, so that a
+ * heavily watched game costs the game server one cheap call per move rather
+ * than one distributed object event per spectator.
+ * <p>
+ * Game managers publish their games' moves with {@link #gameStarted},
+ * {@link #moveApplied} and {@link #gameEnded}; these only queue the event and
+ * never block. A single relay thread collects the queued events every
+ * {@link #BATCH_INTERVAL} milliseconds and hands each watcher of a game every
+ * move made in that time in one batch. A watcher that joins part way through
+ * a game first receives a snapshot of the moves made so far and then the
+ * batches that follow it, with none missed or repeated.
+ * <p>
+ * Watchers may be added in process with {@link #watch}, or may connect over
+ * TCP to the port given by the <code>hnefatafl.relay.port</code> system
+ * property. A network spectator sends the four byte id of the game to watch
+ * (the oid of its game object) and then receives frames, each starting with a
+ * type byte and the game id:
+ * <ul>
+ * <li>{@link #SNAPSHOT}: the variant name as a short length and that many
+ * bytes, then the move count and the moves;
+ * <li>{@link #MOVES}: the ply of the first move, the move count and the moves;
+ * <li>{@link #ENDED}: the colour of the winner, or -1 for a draw or an
+ * unknown game.
+ * </ul>
+ * Numbers are big-endian ints unless noted and moves are packed by
+ * {@link HnefataflObject#packDelta}. Network spectators are written to
+ * without blocking; one that falls more than {@link #MAX_PENDING} bytes
+ * behind is disconnected.
+ * <p>
+ * The game client does not use the relay: spectators who enter a table
+ * through the client still follow the game object's messages. The relay is
+ * for watchers outside the client, such as broadcast feeds and bots.
+ */
+public class SpectatorRelay {
+
+    /** Receives the moves of the games it watches. Called only on the relay thread. */
+    public interface Watcher {
+        /**
+         * Delivers the moves made in a game before the watcher started
+         * watching it. Returns false if the watcher wants nothing more.
+         */
+        public boolean snapshot(int gameId, String variant, int[] moves, int count);
+
+        /**
+         * Delivers the given moves made in a game since the last delivery.
+         * Returns false if the watcher wants nothing more.
+         *
+         * @param ply the number of moves made in the game before the first
+         */
+        public boolean movesApplied(int gameId, int ply, int[] moves, int offset, int count);
+
+        /**
+         * Notes that a game has ended, or was never known to the relay, after
+         * which the watcher hears nothing more of it.
+         *
+         * @param winner the colour of the winner, or -1 for a draw or an
+         * unknown game
+         */
+        public void gameEnded(int gameId, int winner);
+    }
+
+    /** Frame types sent to network spectators. */
+    public static final int SNAPSHOT = 1;
+    public static final int MOVES = 2;
+    public static final int ENDED = 3;
+
+    /**
+     * Returns the relay for this server, starting it on first use listening
+     * on the port given by the <code>hnefatafl.relay.port</code> system
+     * property. Returns null if no port is configured or the relay could not
+     * be started, in which case games are not relayed.
+     */
+    public static synchronized SpectatorRelay getInstance() {
+        String port = System.getProperty("hnefatafl.relay.port");
+        if (_instance == null && !_failed && port != null) {
+            try {
+                _instance = new SpectatorRelay(Integer.parseInt(port));
+            } catch (Exception e) {
+                System.err.println("Unable to start spectator relay " +
+                                   "[port=" + port + ", error=" + e + "].");
+                _failed = true;
+            }
+        }
+        return _instance;
+    }
+
+    /**
+     * Starts a relay and its relay thread, listening for network spectators
+     * on the given port unless it is negative.
+     */
+    public SpectatorRelay(int port) throws IOException {
+        if (port >= 0) {
+            _selector = Selector.open();
+            _server = ServerSocketChannel.open();
+            _server.socket().setReuseAddress(true);
+            _server.socket().bind(new InetSocketAddress(port));
+            _server.configureBlocking(false);
+            _server.register(_selector, SelectionKey.OP_ACCEPT);
+        }
+
+        Thread relay = new Thread("SpectatorRelay") {
+            public void run() {
+                relayLoop();
+            }
+        };
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    /**
+     * Returns the port on which network spectators connect, or -1 if there
+     * is none.
+     */
+    public int getPort() {
+        return (_server == null) ? -1 : _server.socket().getLocalPort();
+    }
+
+    /**
+     * Publishes the start of a game, along with any moves already made in it
+     * (as when a game is resumed).
+     */
+    public void gameStarted(int gameId, String variant, int[] moves, int count) {
+        Event event = new Event(START, gameId);
+        event.variant = variant;
+        event.moves = new int[Math.max(count, 64)];
+        System.arraycopy(moves, 0, event.moves, 0, count);
+        event.value = count;
+        _events.add(event);
+    }
+
+    /**
+     * Publishes a move made in a game.
+     *
+     * @param ply the number of moves made in the game before this one
+     */
+    public void moveApplied(int gameId, int ply, int delta) {
+        Event event = new Event(MOVE, gameId);
+        event.value = ply;
+        event.delta = delta;
+        _events.add(event);
+    }
+
+    /**
+     * Publishes the end of a game.
+     *
+     * @param winner the colour of the winner, or -1 for a draw
+     */
+    public void gameEnded(int gameId, int winner) {
+        Event event = new Event(END, gameId);
+        event.value = winner;
+        _events.add(event);
+    }
+
+    /**
+     * Adds a watcher of the given game. It will receive a snapshot of the
+     * game and then its moves as they are made.
+     */
+    public void watch(int gameId, Watcher watcher) {
+        Event event = new Event(WATCH, gameId);
+        event.watcher = watcher;
+        _events.add(event);
+    }
+
+    /**
+     * Removes a watcher of the given game.
+     */
+    public void unwatch(int gameId, Watcher watcher) {
+        Event event = new Event(UNWATCH, gameId);
+        event.watcher = watcher;
+        _events.add(event);
+    }
+
+    /**
+     * Relays batches of moves every {@link #BATCH_INTERVAL} milliseconds and
+     * services network spectators in between, until the server exits.
+     */
+    protected void relayLoop() {
+        long nextBatch = System.currentTimeMillis() + BATCH_INTERVAL;
+        while (true) {
+            try {
+                long wait = nextBatch - System.currentTimeMillis();
+                if (wait > 0) {
+                    if (_selector != null) {
+                        _selector.select(wait);
+                        serviceSockets();
+                    } else {
+                        Thread.sleep(wait);
+                    }
+                    continue;
+                }
+                nextBatch += BATCH_INTERVAL;
+                relayBatch();
+            } catch (InterruptedException ie) {
+                return;
+            } catch (Exception e) {
+                // one bad watcher or connection mustn't stop the relay
+                System.err.println("Spectator relay failure [error=" + e + "].");
+            }
+        }
+    }
+
+    /**
+     * Applies every queued event and then hands each watcher the moves made
+     * in its games since the last batch.
+     */
+    protected void relayBatch() {
+        for (Event event; (event = _events.poll()) != null; ) {
+            GameFeed feed = _feeds.get(event.gameId);
+            switch (event.type) {
+            case START:
+                feed = new GameFeed();
+                feed.variant = event.variant;
+                feed.moves = event.moves;
+                feed.count = feed.delivered = event.value;
+                _feeds.put(event.gameId, feed);
+                break;
+
+            case MOVE:
+                if (feed != null && event.value == feed.count) {
+                    if (feed.count == feed.moves.length) {
+                        int[] moves = new int[feed.moves.length * 2];
+                        System.arraycopy(feed.moves, 0, moves, 0, feed.count);
+                        feed.moves = moves;
+                    }
+                    feed.moves[feed.count++] = event.delta;
+                }
+                break;
+
+            case END:
+                if (feed != null) {
+                    feed.ended = true;
+                    feed.winner = event.value;
+                }
+                break;
+
+            case WATCH:
+                // new watchers get what the others already have and join them for the rest
+                if (feed == null) {
+                    event.watcher.gameEnded(event.gameId, -1);
+                } else if (event.watcher.snapshot(event.gameId, feed.variant, feed.moves, feed.delivered)) {
+                    feed.watchers.add(event.watcher);
+                }
+                break;
+
+            case UNWATCH:
+                if (feed != null) {
+                    feed.watchers.remove(event.watcher);
+                }
+                break;
+            }
+        }
+
+        for (Iterator<Map.Entry<Integer, GameFeed>> it = _feeds.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, GameFeed> entry = it.next();
+            int gameId = entry.getKey();
+            GameFeed feed = entry.getValue();
+            if (feed.count > feed.delivered) {
+                for (Iterator<Watcher> wit = feed.watchers.iterator(); wit.hasNext(); ) {
+                    if (!wit.next().movesApplied(gameId, feed.delivered, feed.moves,
+                                                 feed.delivered, feed.count - feed.delivered)) {
+                        wit.remove();
+                    }
+                }
+                feed.delivered = feed.count;
+            }
+            if (feed.ended) {
+                for (Watcher watcher : feed.watchers) {
+                    watcher.gameEnded(gameId, feed.winner);
+                }
+                it.remove();
+            }
+        }
+
+        // try again to send anything the network couldn't take last time
+        for (Iterator<SocketWatcher> it = _sockets.iterator(); it.hasNext(); ) {
+            SocketWatcher watcher = it.next();
+            if (!watcher.flush()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Accepts new network spectators and reads the ids of the games they
+     * wish to watch.
+     */
+    protected void serviceSockets() throws IOException {
+        for (Iterator<SelectionKey> it = _selector.selectedKeys().iterator(); it.hasNext(); ) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+
+            if (key.isAcceptable()) {
+                SocketChannel channel = _server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.register(_selector, SelectionKey.OP_READ, new SocketWatcher(channel));
+                }
+
+            } else if (key.isReadable()) {
+                SocketWatcher watcher = (SocketWatcher)key.attachment();
+                int read;
+                try {
+                    read = watcher.channel.read(watcher.request);
+                } catch (IOException ioe) {
+                    read = -1;
+                }
+                if (read == -1) {
+                    watcher.close();
+                } else if (!watcher.request.hasRemaining()) {
+                    // the spectator has named its game; nothing more is read from it
+                    key.interestOps(0);
+                    watcher.request.flip();
+                    watch(watcher.request.getInt(), watcher);
+                    _sockets.add(watcher);
+                }
+            }
+        }
+    }
+
+    /** A network spectator. */
+    protected class SocketWatcher implements Watcher {
+        /** The connection to the spectator. */
+        public SocketChannel channel;
+
+        /** The id of the game requested by the spectator. */
+        public ByteBuffer request = ByteBuffer.allocate(4);
+
+        public SocketWatcher(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // from interface Watcher
+        public boolean snapshot(int gameId, String variant, int[] moves, int count) {
+            byte[] name = variant.getBytes();
+            ByteBuffer frame = frame(SNAPSHOT, gameId, 2 + name.length + 4 + count * 4);
+            frame.putShort((short)name.length);
+            frame.put(name);
+            frame.putInt(count);
+            for (int i = 0; i < count; i++) {
+                frame.putInt(moves[i]);
+            }
+            return send(frame);
+        }
+
+        // from interface Watcher
+        public boolean movesApplied(int gameId, int ply, int[] moves, int offset, int count) {
+            ByteBuffer frame = frame(MOVES, gameId, 8 + count * 4);
+            frame.putInt(ply);
+            frame.putInt(count);
+            for (int i = offset; i < offset + count; i++) {
+                frame.putInt(moves[i]);
+            }
+            return send(frame);
+        }
+
+        // from interface Watcher
+        public void gameEnded(int gameId, int winner) {
+            ByteBuffer frame = frame(ENDED, gameId, 4);
+            frame.putInt(winner);
+            send(frame);
+        }
+
+        /**
+         * Sends as much as the connection will take without blocking,
+         * including anything left over from before. Returns false and
+         * disconnects if the spectator has gone or has fallen too far behind.
+         */
+        public boolean flush() {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            try {
+                _pending.flip();
+                channel.write(_pending);
+                _pending.compact();
+                return true;
+            } catch (IOException ioe) {
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * Disconnects the spectator.
+         */
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // nothing to be done
+            }
+        }
+
+        /**
+         * Returns a buffer holding the header of a frame and with room for
+         * the given number of bytes of body.
+         */
+        protected ByteBuffer frame(int type, int gameId, int body) {
+            ByteBuffer frame = ByteBuffer.allocate(5 + body);
+            frame.put((byte)type);
+            frame.putInt(gameId);
+            return frame;
+        }
+
+        /**
+         * Queues a frame and sends what the connection will take.
+         */
+        protected boolean send(ByteBuffer frame) {
+            frame.flip();
+            if (frame.remaining() > _pending.remaining()) {
+                System.err.println("Dropping slow spectator [addr=" +
+                                   channel.socket().getRemoteSocketAddress() + "].");
+                close();
+                return false;
+            }
+            _pending.put(frame);
+            return flush();
+        }
+
+        /** Bytes waiting to be sent. */
+        protected ByteBuffer _pending = ByteBuffer.allocate(MAX_PENDING);
+    }
+
+    /** The relay's record of one game. */
+    protected static class GameFeed {
+        /** The variant being played. */
+        public String variant;
+
+        /** The moves made so far, of which the first <code>count</code> are in use. */
+        public int[] moves;
+        public int count;
+
+        /** The number of moves already handed to the watchers. */
+        public int delivered;
+
+        /** Whether the game has ended, and its winner. */
+        public boolean ended;
+        public int winner;
+
+        /** The watchers of the game. */
+        public List<Watcher> watchers = new ArrayList<Watcher>();
+    }
+
+    /** An event awaiting the relay thread. */
+    protected static class Event {
+        public int type;
+        public int gameId;
+        public int value;
+        public int delta;
+        public String variant;
+        public int[] moves;
+        public Watcher watcher;
+
+        public Event(int type, int gameId) {
+            this.type = type;
+            this.gameId = gameId;
+        }
+    }
+
+    /** Events published but not yet applied. */
+    protected ConcurrentLinkedQueue<Event> _events = new ConcurrentLinkedQueue<Event>();
+
+    /** The games being relayed, by id. Used only on the relay thread. */
+    protected Map<Integer, GameFeed> _feeds = new HashMap<Integer, GameFeed>();
+
+    /** Network spectators watching a game. Used only on the relay thread. */
+    protected List<SocketWatcher> _sockets = new ArrayList<SocketWatcher>();
+
+    /** Listens for network spectators, or null if there are none. */
+    protected ServerSocketChannel _server;
+    protected Selector _selector;
+
+    /** The server's relay, once started. */
+    protected static SpectatorRelay _instance;
+
+    /** Whether starting the relay has failed. */
+    protected static boolean _failed;
+
+    /** Event types. */
+    protected static final int START = 1;
+    protected static final int MOVE = 2;
+    protected static final int END = 3;
+    protected static final int WATCH = 4;
+    protected static final int UNWATCH = 5;
+
+    /** Milliseconds between batches of moves. */
+    protected static final long BATCH_INTERVAL = 100L;
+
+    /** Bytes a network spectator may fall behind before it is disconnected. */
+    protected static final int MAX_PENDING = 64 * 1024;
+}
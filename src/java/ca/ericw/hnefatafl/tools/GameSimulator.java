@@ -0,0 +1,327 @@
+package ca.ericw.hnefatafl.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.ericw.hnefatafl.ai.AlphaBetaSearch;
+import ca.ericw.hnefatafl.archive.GameRecordWriter;
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+import ca.ericw.hnefatafl.data.HnefataflVariant;
+
+/**
+ * Plays large numbers of games between two computer policies, spread across
+ * every processor, and reports how often each side wins. The games are played
+ * directly on a {@link HnefataflBoard}, so no server or game object is needed.
+ * Useful for checking the balance of a board configuration or rule change.
+ * <p>
+ * Usage: <code>GameSimulator [-games n] [-threads n] [-seed n] [-black policy]
+ * [-white policy] [-archive file] [setup ...]</code> where each policy is one
+ * of <code>random</code>, <code>greedy</code> or <code>search:millis</code>.
+ * Every configuration is simulated if none is named. The games played are
+ * appended to the given archive, if any, for building opening books.
+ */
+public class GameSimulator {
+
+    /** Chooses the moves for one side of a simulated game. */
+    public interface Policy {
+        /**
+         * Returns the index into the given moves of the move to play.
+         */
+        public int chooseMove(HnefataflBoard board, int colour, int[] moves, int count, Random rand);
+    }
+
+    /** Plays a move chosen uniformly at random. */
+    public static class RandomPolicy implements Policy {
+        // from interface Policy
+        public int chooseMove(HnefataflBoard board, int colour, int[] moves, int count, Random rand) {
+            return rand.nextInt(count);
+        }
+    }
+
+    /**
+     * Plays a winning move if there is one, otherwise a capturing move if there
+     * is one, otherwise a random move.
+     */
+    public static class GreedyPolicy implements Policy {
+        // from interface Policy
+        public int chooseMove(HnefataflBoard board, int colour, int[] moves, int count, Random rand) {
+            int capture = -1;
+            for (int i = 0; i < count; i++) {
+                int from = HnefataflBoard.getMoveFrom(moves[i]), to = HnefataflBoard.getMoveTo(moves[i]);
+                int captures = board.findCaptures(from, to);
+                if (board.isKingAt(from) && board.isEscapeSquare(to)) {
+                    return i;
+                }
+                for (int dir = 0; dir < 4 && captures != 0; dir++) {
+                    if ((captures & (1 << dir)) != 0 && board.isKingAt(board.getCaptureSquare(to, dir))) {
+                        return i;
+                    }
+                }
+                if (captures != 0 && capture == -1) {
+                    capture = i;
+                }
+            }
+            return (capture != -1) ? capture : rand.nextInt(count);
+        }
+    }
+
+    /** Plays the move chosen by a short alpha-beta search. */
+    public static class SearchPolicy implements Policy {
+        public SearchPolicy(long budget) {
+            _budget = budget;
+        }
+
+        // from interface Policy
+        public int chooseMove(HnefataflBoard board, int colour, int[] moves, int count, Random rand) {
+            int best = _searches.get().findBestMove(board, colour, _budget);
+            for (int i = 0; i < count; i++) {
+                if (moves[i] == best) {
+                    return i;
+                }
+            }
+            return rand.nextInt(count);
+        }
+
+        protected long _budget;
+
+        protected static final ThreadLocal<AlphaBetaSearch> _searches = new ThreadLocal<AlphaBetaSearch>() {
+            protected AlphaBetaSearch initialValue() {
+                return new AlphaBetaSearch();
+            }
+        };
+    }
+
+    /** Totals gathered over a batch of simulated games. */
+    public static class Results {
+        public int games;
+        public int blackWins;
+        public int whiteWins;
+        public int draws;
+        public int moveLimitDraws;
+        public long plies;
+        public long captures;
+
+        /**
+         * Adds the totals of another set of results to this one.
+         */
+        public void add(Results other) {
+            games += other.games;
+            blackWins += other.blackWins;
+            whiteWins += other.whiteWins;
+            draws += other.draws;
+            moveLimitDraws += other.moveLimitDraws;
+            plies += other.plies;
+            captures += other.captures;
+        }
+    }
+
+    /**
+     * Creates a simulator pitting the given policies against one another.
+     */
+    public GameSimulator(Policy black, Policy white, int threads, long seed) {
+        _black = black;
+        _white = white;
+        _threads = threads;
+        _seed = seed;
+    }
+
+    /**
+     * Appends every game played from now on to the given archive.
+     */
+    public void setArchive(GameRecordWriter archive) {
+        _archive = archive;
+    }
+
+    /**
+     * Plays the given number of games from the named configuration and
+     * returns the combined results.
+     */
+    public Results simulate(final String setup, final int games) throws Exception {
+        final HnefataflVariant variant = HnefataflConfigurations.getVariant(setup);
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        try {
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<Results>> workers = new ArrayList<Future<Results>>();
+            for (int i = 0; i < _threads; i++) {
+                final Random rand = new Random(_seed + i);
+                workers.add(pool.submit(new Callable<Results>() {
+                    public Results call() {
+                        // each worker keeps its own totals and board; no sharing until the end
+                        Results results = new Results();
+                        HnefataflBoard start = variant.createBoard();
+                        HnefataflBoard board = new HnefataflBoard(start.getSize());
+                        int[] moves = new int[board.getMaxMoves()];
+                        int[] game = new int[MAX_PLIES];
+                        while (next.getAndIncrement() < games) {
+                            board.copyFrom(start);
+                            int winner = playGame(board, moves, game, rand, results);
+                            if (_archive != null) {
+                                archiveGame(setup, winner, game, board.getMoveCount());
+                            }
+                        }
+                        return results;
+                    }
+                }));
+            }
+
+            Results total = new Results();
+            for (Future<Results> worker : workers) {
+                total.add(worker.get());
+            }
+            return total;
+
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Plays a single game to completion on the given board, adding its outcome
+     * to the given results, and returns the winning colour or -1 for a draw.
+     * The moves played are written to the given game array.
+     */
+    protected int playGame(HnefataflBoard board, int[] moves, int[] game, Random rand, Results results) {
+        int colour = HnefataflObject.BLACK;
+        int ply = 0;
+        int winner = -1;
+
+        for (; ply < MAX_PLIES; ply++) {
+            int count = board.generateMoves(colour, moves);
+            if (count == 0) {
+                // the player to move is stuck; a stalemate
+                break;
+            }
+
+            Policy policy = (colour == HnefataflObject.BLACK) ? _black : _white;
+            int move = moves[policy.chooseMove(board, colour, moves, count, rand)];
+            int captures = board.makeMove(move);
+            game[ply] = move;
+            results.captures += Integer.bitCount(captures);
+
+            winner = board.getWinner();
+            if (winner != -1) {
+                ply++;
+                break;
+            }
+            colour = 1 - colour;
+        }
+
+        results.games++;
+        results.plies += ply;
+        if (winner == HnefataflObject.BLACK) {
+            results.blackWins++;
+        } else if (winner == HnefataflObject.WHITE) {
+            results.whiteWins++;
+        } else {
+            results.draws++;
+            if (ply == MAX_PLIES) {
+                results.moveLimitDraws++;
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * Appends a finished game to the archive.
+     */
+    protected void archiveGame(String setup, int winner, int[] game, int count) {
+        synchronized (_archive) {
+            try {
+                _archive.writeGame(setup, winner, game, count);
+            } catch (IOException ioe) {
+                System.err.println("Unable to archive game [setup=" + setup +
+                                   ", error=" + ioe + "].");
+            }
+        }
+    }
+
+    /**
+     * Returns the policy described by the given command line argument.
+     */
+    protected static Policy parsePolicy(String arg) {
+        if (arg.equals("random")) {
+            return new RandomPolicy();
+        } else if (arg.equals("greedy")) {
+            return new GreedyPolicy();
+        } else if (arg.startsWith("search:")) {
+            return new SearchPolicy(Long.parseLong(arg.substring("search:".length())));
+        }
+        throw new IllegalArgumentException("Unknown policy [policy=" + arg + "].");
+    }
+
+    /**
+     * Runs the simulator from the command line.
+     */
+    public static void main(String[] args) throws Exception {
+        int games = 10000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.currentTimeMillis();
+        Policy black = new RandomPolicy(), white = new RandomPolicy();
+        List<String> setups = new ArrayList<String>();
+        GameRecordWriter archive = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-games")) {
+                games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-black")) {
+                black = parsePolicy(args[++i]);
+            } else if (args[i].equals("-white")) {
+                white = parsePolicy(args[++i]);
+            } else if (args[i].equals("-archive")) {
+                archive = new GameRecordWriter(new File(args[++i]));
+            } else {
+                setups.add(args[i]);
+            }
+        }
+        if (setups.isEmpty()) {
+            setups.addAll(HnefataflConfigurations.getConfigurationNames());
+        }
+
+        GameSimulator sim = new GameSimulator(black, white, threads, seed);
+        sim.setArchive(archive);
+        for (String setup : setups) {
+            long start = System.nanoTime();
+            Results r = sim.simulate(setup, games);
+            double secs = Math.max(System.nanoTime() - start, 1L) / 1e9;
+
+            System.out.println(String.format(
+                "%s: %d games, black %.1f%%, white %.1f%%, draw %.1f%% (%d at move limit), " +
+                "%.1f plies/game, %.2f captures/game, %.0f games/s",
+                setup, r.games, 100.0 * r.blackWins / r.games, 100.0 * r.whiteWins / r.games,
+                100.0 * r.draws / r.games, r.moveLimitDraws, (double)r.plies / r.games,
+                (double)r.captures / r.games, r.games / secs));
+        }
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    /** Policies playing each side. */
+    protected Policy _black, _white;
+
+    /** Archive to which games are appended, or null. */
+    protected GameRecordWriter _archive;
+
+    /** Number of threads on which to play games. */
+    protected int _threads;
+
+    /** Seed from which each thread's random numbers are drawn. */
+    protected long _seed;
+
+    /** Games still going after this many plies are called a draw. */
+    protected static final int MAX_PLIES = 500;
+}
@@ -0,0 +1,181 @@
+package ca.ericw.hnefatafl.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.ericw.hnefatafl.data.HnefataflBoard;
+import ca.ericw.hnefatafl.data.HnefataflConfigurations;
+import ca.ericw.hnefatafl.data.HnefataflObject;
+
+/**
+ * Counts the positions reachable from the start of each board configuration
+ * to a given depth and checks them against known reference counts, reporting
+ * the rate at which positions were generated. Any change to the rules engine
+ * that alters a count has changed the rules; any that slows the rate has made
+ * the engine slower.
+ * <p>
+ * A position in which the game has been won is counted if it is reached at
+ * the final depth but is not searched beyond. Black moves first.
+ * <p>
+ * Usage: <code>Perft [depth] [-verify]</code>. With <code>-verify</code>,
+ * every position visited is also checked for agreement between the move
+ * generator and {@link HnefataflBoard#isValidMove}, and for a board and hash
+ * restored exactly by {@link HnefataflBoard#unmakeMove}.
+ */
+public class Perft {
+
+    /**
+     * Creates a perft counter, optionally checking every position visited.
+     */
+    public Perft(boolean verify) {
+        _verify = verify;
+    }
+
+    /**
+     * Returns the number of positions at exactly the given depth below the
+     * given board with the given colour to move.
+     */
+    public long perft(HnefataflBoard board, int colour, int depth) {
+        if (depth == 0) {
+            return 1;
+        }
+        if (board.getWinner() != -1) {
+            return 0;
+        }
+
+        int ply = board.getMoveCount();
+        if (_moves.length <= ply) {
+            int[][] moves = new int[ply + 1][];
+            System.arraycopy(_moves, 0, moves, 0, _moves.length);
+            _moves = moves;
+        }
+        if (_moves[ply] == null || _moves[ply].length < board.getMaxMoves()) {
+            _moves[ply] = new int[board.getMaxMoves()];
+        }
+
+        int[] moves = _moves[ply];
+        int count = board.generateMoves(colour, moves);
+        if (_verify) {
+            verifyMoves(board, colour, moves, count);
+        }
+        if (depth == 1 && !_verify) {
+            return count;
+        }
+
+        long nodes = 0;
+        int opponent = (colour == HnefataflObject.BLACK) ? HnefataflObject.WHITE : HnefataflObject.BLACK;
+        for (int i = 0; i < count; i++) {
+            long hash = board.getHash(colour);
+            board.makeMove(moves[i]);
+            nodes += perft(board, opponent, depth - 1);
+            board.unmakeMove();
+            if (_verify && board.getHash(colour) != hash) {
+                throw new IllegalStateException("Unmaking a move failed to restore the position " +
+                                                "[move=" + describe(board, moves[i]) + "].");
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Checks that the generated moves are exactly those that the board
+     * considers valid.
+     */
+    protected void verifyMoves(HnefataflBoard board, int colour, int[] moves, int count) {
+        int squares = board.getSize() * board.getSize();
+        int valid = 0;
+        for (int from = 0; from < squares; from++) {
+            if (board.getColourAt(from) != colour) {
+                continue;
+            }
+            for (int to = 0; to < squares; to++) {
+                if (board.isValidMove(from, to)) {
+                    valid++;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int from = HnefataflBoard.getMoveFrom(moves[i]), to = HnefataflBoard.getMoveTo(moves[i]);
+            if (board.getColourAt(from) != colour || !board.isValidMove(from, to)) {
+                throw new IllegalStateException("Generated an invalid move " +
+                                                "[move=" + describe(board, moves[i]) + "].");
+            }
+        }
+        if (valid != count) {
+            throw new IllegalStateException("Generated moves disagree with validation " +
+                                            "[generated=" + count + ", valid=" + valid + "].");
+        }
+    }
+
+    /**
+     * Returns a readable description of a packed move.
+     */
+    protected static String describe(HnefataflBoard board, int move) {
+        int size = board.getSize();
+        int from = HnefataflBoard.getMoveFrom(move), to = HnefataflBoard.getMoveTo(move);
+        return "(" + (from / size) + "," + (from % size) + ")->(" + (to / size) + "," + (to % size) + ")";
+    }
+
+    /**
+     * Runs perft on every board configuration and compares the results with
+     * the reference counts. Exits with a non-zero status on any mismatch.
+     */
+    public static void main(String[] args) {
+        int maxDepth = DEFAULT_DEPTH;
+        boolean verify = false;
+        for (String arg : args) {
+            if (arg.equals("-verify")) {
+                verify = true;
+            } else {
+                maxDepth = Integer.parseInt(arg);
+            }
+        }
+
+        Perft perft = new Perft(verify);
+        boolean failed = false;
+        for (String name : HnefataflConfigurations.getConfigurationNames()) {
+            long[] expected = REFERENCE_COUNTS.get(name);
+            for (int depth = 1; depth <= maxDepth; depth++) {
+                HnefataflBoard board = HnefataflConfigurations.getVariant(name).createBoard();
+                long start = System.nanoTime();
+                long nodes = perft.perft(board, HnefataflObject.BLACK, depth);
+                long elapsed = Math.max(System.nanoTime() - start, 1L);
+
+                String status;
+                if (expected == null || depth > expected.length) {
+                    status = "unchecked";
+                } else if (expected[depth-1] == nodes) {
+                    status = "ok";
+                } else {
+                    status = "MISMATCH (expected " + expected[depth-1] + ")";
+                    failed = true;
+                }
+                System.out.println(name + " depth " + depth + ": " + nodes + " nodes, " +
+                                   (nodes * 1000000000L / elapsed) + " nodes/s, " + status);
+            }
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /** True if every position visited should be checked. */
+    protected boolean _verify;
+
+    /** Move buffer for each ply. */
+    protected int[][] _moves = new int[0][];
+
+    /** Depth searched if none is given. */
+    protected static final int DEFAULT_DEPTH = 4;
+
+    /** Known counts of positions at each depth from the start of each configuration. */
+    protected static final Map<String, long[]> REFERENCE_COUNTS = new HashMap<String, long[]>();
+
+    static {
+        REFERENCE_COUNTS.put("ardri", new long[] { 40L, 336L, 12512L, 163088L, 5951904L });
+        REFERENCE_COUNTS.put("tablut", new long[] { 72L, 3944L, 285728L, 15951824L, 1167760776L });
+        REFERENCE_COUNTS.put("errk", new long[] { 32L, 740L, 26140L, 622784L, 23192724L });
+        REFERENCE_COUNTS.put("fetlar", new long[] { 116L, 6788L, 806344L, 50456804L, 6116568016L });
+    }
+}